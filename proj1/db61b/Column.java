@@ -16,6 +16,7 @@ class Column {
         for (_table = 0; _table < tables.length; _table += 1) {
             _column = tables[_table].findColumn(name);
             if (_column != -1) {
+                _type = tables[_table].getType(_column);
                 return;
             }
         }
@@ -27,6 +28,21 @@ class Column {
         return _name;
     }
 
+    /** Return the index, among the tables given to my constructor, of the
+     *  table I select from. */
+    int getTable() {
+        return _table;
+    }
+
+    /** Return the number of the column I select within my table. */
+    int getColumn() {
+        return _column;
+    }
+
+    /** Return the type of the column I select. */
+    Type getType() {
+        return _type;
+    }
 
     /** Returns the value of this Column from ROWS[_table]. Assumes that
      *  ROWS[_table] is from the same table that was provided to the
@@ -41,8 +57,23 @@ class Column {
         return rows[_table].get(_column);
     }
 
+    /** Returns the value of this Column from row number ROWS[_table] of
+     *  TABLES[_table], where TABLES are the tables supplied to my
+     *  constructor, in the same order. */
+    String getFrom(Table[] tables, int[] rows) {
+        return tables[_table].get(rows[_table], _column);
+    }
+
+    /** Returns the code of the value of this Column from row number
+     *  ROWS[_table] of TABLES[_table], in the dictionary of that table. */
+    int codeFrom(Table[] tables, int[] rows) {
+        return tables[_table].code(rows[_table], _column);
+    }
+
     /** Column name denoted by THIS. */
     private String _name;
     /** Index of the table and column from which to extract a value. */
     private int _table, _column;
+    /** Type of the column from which to extract a value. */
+    private Type _type;
 }
@@ -0,0 +1,71 @@
+package db61b;
+
+import java.util.BitSet;
+
+/** Statistics on the values in one column of a Table: how many distinct
+ *  values it holds, and the least and greatest of them, kept up to date
+ *  as rows are added.  Only a value that is new to the column costs more
+ *  than a single bit test, so keeping them is cheap.
+ *  @author Adam Shi
+ */
+class ColumnStatistics {
+
+    /** Statistics on an empty column of type TYPE whose values are
+     *  encoded by DICTIONARY. */
+    ColumnStatistics(ValueDictionary dictionary, Type type) {
+        _dict = dictionary;
+        _type = type;
+    }
+
+    /** Return an estimate of the number of bytes I occupy. */
+    long memory() {
+        return _seen.size() / 8;
+    }
+
+    /** Record that the column holds the value whose code is CODE. */
+    void add(int code) {
+        if (_seen.get(code)) {
+            return;
+        }
+        _seen.set(code);
+        _distinct += 1;
+        if (_distinct == 1 || _type.compare(_dict, code, _dict, _min) < 0) {
+            _min = code;
+        }
+        if (_distinct == 1 || _type.compare(_dict, code, _dict, _max) > 0) {
+            _max = code;
+        }
+    }
+
+    /** Return the number of distinct values in the column. */
+    int distinct() {
+        return _distinct;
+    }
+
+    /** Return the least value in the column, or null if it is empty. */
+    String min() {
+        return _distinct == 0 ? null : _dict.get(_min);
+    }
+
+    /** Return the greatest value in the column, or null if it is
+     *  empty. */
+    String max() {
+        return _distinct == 0 ? null : _dict.get(_max);
+    }
+
+    /** Return the type of the column. */
+    Type type() {
+        return _type;
+    }
+
+    /** Dictionary encoding the column's values. */
+    private final ValueDictionary _dict;
+    /** The type of the column, which orders its values. */
+    private final Type _type;
+    /** The codes of the values in the column. */
+    private final BitSet _seen = new BitSet();
+    /** Number of distinct values in the column. */
+    private int _distinct;
+    /** Codes of the least and greatest values in the column. */
+    private int _min, _max;
+}
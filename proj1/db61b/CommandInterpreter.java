@@ -1,9 +1,14 @@
 package db61b;
 
 import java.io.PrintStream;
+import java.io.Reader;
 
 import java.util.ArrayList;
-import java.util.Scanner;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Supplier;
 
 import static db61b.Utils.*;
 import static db61b.Tokenizer.*;
@@ -114,14 +119,76 @@ class CommandInterpreter {
 
     /** A new CommandInterpreter executing commands read from INP, writing
      *  prompts on PROMPTER, if it is non-null. */
-    CommandInterpreter(Scanner inp, PrintStream prompter) {
+    CommandInterpreter(Reader inp, PrintStream prompter) {
+        this(inp, prompter, System.out, new Database());
+    }
+
+    /** A new CommandInterpreter executing commands read from INP against
+     *  DATABASE, which it may share with other interpreters, writing
+     *  prompts on PROMPTER, if it is non-null, and results on OUTPUT. */
+    CommandInterpreter(Reader inp, PrintStream prompter, PrintStream output,
+                       Database database) {
         _input = new Tokenizer(inp, prompter);
-        _database = new Database();
+        _output = output;
+        _database = database;
+    }
+
+    /** Report sizes and timings of loads and stores iff STATS. */
+    void setStats(boolean stats) {
+        _stats = stats;
+    }
+
+    /** Recover the database kept in DIRECTORY and keep it durably there
+     *  from now on, reporting the tables recovered. */
+    void open(String directory) {
+        _database.open(directory);
+        List<String> names = _database.tableNames();
+        Collections.sort(names);
+        _output.printf("Recovered %d table(s) from %s%s%n",
+                       names.size(), directory,
+                       names.isEmpty() ? "" : ": " + String.join(" ", names));
+    }
+
+    /** Make all changes durable, if the database is kept in a directory,
+     *  and stop logging them. */
+    void close() {
+        _database.close();
+    }
+
+    /** Execute statements until reaching a quit or exit statement or the
+     *  end of input, reporting each erroneous statement and skipping the
+     *  rest of it. */
+    void run() {
+        while (true) {
+            try {
+                if (!statement()) {
+                    break;
+                }
+            } catch (DBException e) {
+                _output.printf("Error: %s%n", e.getMessage());
+                skipCommand();
+            }
+        }
     }
 
     /** Parse and execute one statement from the token stream.  Return true
-     *  iff the command is something other than quit or exit. */
+     *  iff the command is something other than quit or exit.  The tables
+     *  the statement uses are locked until it is done. */
     boolean statement() {
+        try {
+            return execute();
+        } finally {
+            _database.unlock(_locks);
+            _locks = Collections.emptyList();
+            _target = null;
+            _from = null;
+            _database.checkpointIfNeeded();
+        }
+    }
+
+    /** Parse and execute one statement from the token stream, as for
+     *  statement(). */
+    private boolean execute() {
         switch (_input.peek()) {
         case "create":
             createStatement();
@@ -129,6 +196,9 @@ class CommandInterpreter {
         case "load":
             loadStatement();
             break;
+        case "explain":
+            explainStatement();
+            break;
         case "exit": case "quit":
             exitStatement();
             return false;
@@ -155,10 +225,35 @@ class CommandInterpreter {
     /** Parse and execute a create statement from the token stream. */
     void createStatement() {
         _input.next("create");
+        if (_input.nextIs("index")) {
+            createIndexStatement();
+            return;
+        }
         _input.next("table");
         String name = name();
+        _target = name;
         Table table = tableDefinition();
-        _database.put(name, table);
+        lock(Collections.<String>emptyList(), name);
+        _database.create(name, table);
+        _input.next(";");
+    }
+
+    /** Parse and execute the remainder of a create index statement,
+     *  following the initial "create". */
+    void createIndexStatement() {
+        _input.next("index");
+        String name = name();
+        _input.next("on");
+        String tableName = _input.peek();
+        tableName(true);
+        _input.next("(");
+        ArrayList<String> columnNames = new ArrayList<String>();
+        columnNames.add(columnName());
+        while (_input.nextIf(",")) {
+            columnNames.add(columnName());
+        }
+        _input.next(")");
+        _database.createIndex(tableName, name, columnNames);
         _input.next(";");
     }
 
@@ -171,40 +266,104 @@ class CommandInterpreter {
         _input.next(";");
     }
 
-    /** Parse and execute an insert statement from the token stream. */
+    /** Parse and execute an insert statement from the token stream.  The
+     *  rows inserted are given by a single list of literals, by any
+     *  number of parenthesized lists of literals, separated by commas, or
+     *  by a select clause, and are added as a batch. */
     void insertStatement() {
         _input.next("insert");
         _input.next("into");
-        Table table = tableName();
+        String name = name();
+        if (_input.nextIs("select")) {
+            _target = name;
+            Table rows = Table.collect(selectClause());
+            table(name);
+            _database.insert(name, rows);
+            _input.next(";");
+            return;
+        }
         _input.next("values");
+        ArrayList<Row> rows = new ArrayList<>();
+        if (_input.nextIs("(")) {
+            do {
+                _input.next("(");
+                rows.add(literals());
+                _input.next(")");
+            } while (_input.nextIf(","));
+        } else {
+            rows.add(literals());
+        }
+        lock(Collections.<String>emptyList(), name);
+        table(name);
+        _database.insert(name, rows);
+        _input.next(";");
+    }
 
+    /** Parse a list of one or more literals, separated by commas, from the
+     *  token stream, and return a Row of their values. */
+    Row literals() {
         ArrayList<String> values = new ArrayList<>();
         values.add(literal());
         while (_input.nextIf(",")) {
             values.add(literal());
         }
-
-        table.add(new Row(values.toArray(new String[values.size()])));
-        _input.next(";");
+        return new Row(values.toArray(new String[values.size()]));
     }
 
-    /** Parse and execute a load statement from the token stream. */
+    /** Parse and execute a load statement from the token stream.  The
+     *  file is memory-mapped and parsed in place unless the table name is
+     *  followed by "buffered", which selects line-by-line reading, by
+     *  "parallel", which splits the parsing among several threads, or by
+     *  "binary", which reads the binary .dbb file instead.  A table with
+     *  only a .dbb file is read from that.  The file is not read until
+     *  the table is used (see Database.load), unless statistics on loads
+     *  are to be reported. */
     void loadStatement() {
         _input.next("load");
         String fileName = name();
-        Table table = Table.readTable(fileName);
-        _database.put(fileName, table);
+        TableReader reader =
+            new TableReader(fileName, _database.dictionary());
+        Supplier<Table> source;
+        String extension = ".db";
+        if (_input.nextIf("buffered")) {
+            source = reader::readBuffered;
+        } else if (_input.nextIf("parallel")) {
+            source = reader::readParallel;
+        } else if (_input.nextIf("binary") || reader.binaryOnly()) {
+            source = reader::readBinary;
+            extension = ".dbb";
+        } else {
+            source = reader::readMapped;
+        }
+        reader.checkExists(extension);
+        lock(Collections.<String>emptyList(), fileName);
+        _database.load(fileName, source);
         _input.next(";");
-        System.out.println("Loaded " + fileName + ".db");
+        _output.println("Loaded " + fileName + extension);
+        if (_stats) {
+            _database.get(fileName);
+            _output.println("  (" + reader.statistics() + ")");
+        }
     }
 
-    /** Parse and execute a store statement from the token stream. */
+    /** Parse and execute a store statement from the token stream.  The
+     *  table is written in binary to a .dbb file if its name is followed
+     *  by "binary". */
     void storeStatement() {
         _input.next("store");
         String name = _input.peek();
         Table table = tableName();
-        table.writeTable(name);
-        System.out.printf("Stored %s.db%n", name);
+        TableWriter writer = new TableWriter(name);
+        if (_input.nextIf("binary")) {
+            writer.writeBinary(table);
+            _output.printf("Stored %s.dbb%n", name);
+        } else {
+            writer.write(table);
+            _output.printf("Stored %s.db%n", name);
+        }
+        if (_stats) {
+            _output.println("  (" + writer.statistics() + ")");
+        }
         _input.next(";");
     }
 
@@ -213,74 +372,194 @@ class CommandInterpreter {
         _input.next("print");
         String fileName = _input.peek();
         Table table = tableName();
-        System.out.println("Contents of " + fileName + ":");
-        table.print();
+        _output.println("Contents of " + fileName + ":");
+        table.print(_output);
         _input.next(";");
     }
 
-    /** Parse and execute a select statement from the token stream. */
+    /** Parse and execute a select statement from the token stream.  If
+     *  the database keeps results, the result of a statement of at most
+     *  PlanCache.MAX_TOKENS tokens is taken from its ResultCache when
+     *  present there, and added to it otherwise. */
     void selectStatement() {
-        Table table = selectClause();
-        System.out.println("Search results:");
-        table.print();
+        ResultCache results = _database.results();
+        List<String> clause = results == null ? null
+            : _input.peekStatement(PlanCache.MAX_TOKENS);
+        if (clause == null) {
+            results = null;
+        }
+        Operator.Output plan = selectClause();
+        _input.next(";");
+        _output.println("Search results:");
+        if (results == null) {
+            new Operator.Distinct(plan).print(plan.dictionary(), _output);
+            return;
+        }
+        Table result = results.get(clause, _from);
+        if (result == null) {
+            result = Table.collect(plan);
+            results.put(clause, _from, result);
+        } else {
+            plan.close();
+        }
+        result.print(_output);
+    }
+
+    /** Parse and execute an explain statement from the token stream: run
+     *  the select that follows without printing its rows, and then print
+     *  the plan chosen for it, with the estimated and actual number of
+     *  rows and the time taken at each step. */
+    void explainStatement() {
+        _input.next("explain");
+        Operator.Output plan = selectClause();
         _input.next(";");
+        Operator result = new Operator.Distinct(plan);
+        result.time();
+        try {
+            while (result.next()) {
+                continue;
+            }
+        } finally {
+            result.close();
+        }
+        _output.println("Plan:");
+        result.explain("  ", _output);
     }
 
     /** Parse and execute a table definition, returning the specified
-     *  table. */
+     *  table.  Each column named in a definition may be followed by its
+     *  type: string (the default), int, or double. */
     Table tableDefinition() {
         Table table;
         if (_input.nextIf("(")) {
             ArrayList<String> columnNames = new ArrayList<String>();
-            columnNames.add(columnName());
-            while (_input.nextIf(",")) {
+            ArrayList<Type> types = new ArrayList<Type>();
+            do {
                 columnNames.add(columnName());
-            }
+                types.add(_input.nextIs(Tokenizer.IDENTIFIER)
+                          ? Type.named(name()) : Type.STRING);
+            } while (_input.nextIf(","));
             _input.next(")");
-            table = new Table(columnNames);
+            table = new Table(columnNames, types, _database.dictionary());
         } else {
             _input.next("as");
-            table = selectClause();
+            table = Table.collect(selectClause())
+                .withDictionary(_database.dictionary());
         }
         return table;
     }
 
-    /** Parse and execute a select clause from the token stream, returning the
-     *  resulting table. */
-    Table selectClause() {
-        boolean twoTables = false;
+    /** Parse a select clause, which may draw on any number of tables,
+     *  may select aggregates, and may end with group by and order by
+     *  clauses, from the token stream, returning the pipeline that
+     *  produces its rows, which may contain duplicates.  A clause that
+     *  differs from one parsed before only in its literals is taken from
+     *  the database's PlanCache instead of being parsed again, if it has
+     *  at most PlanCache.MAX_TOKENS tokens, so that the tokens looked at
+     *  ahead of the parse are limited. */
+    Operator.Output selectClause() {
+        List<String> tokens = _input.peekStatement(PlanCache.MAX_TOKENS);
+        List<String> key;
+        PlanCache.Prepared clause;
+        if (tokens == null) {
+            key = null;
+            clause = null;
+        } else if (_lastKey != null && PlanCache.matches(_lastKey, tokens)) {
+            key = _lastKey;
+            clause = _lastClause;
+        } else {
+            key = PlanCache.key(tokens);
+            clause = _database.plans().get(key);
+        }
+        if (clause != null) {
+            List<String> fromNames = clause.fromNames();
+            lock(fromNames, _target);
+            Table[] tables = new Table[fromNames.size()];
+            for (int t = 0; t < tables.length; t += 1) {
+                tables[t] = table(fromNames.get(t));
+            }
+            if (clause.fits(tables)) {
+                ArrayList<String> literals = new ArrayList<>();
+                for (String token : tokens) {
+                    if (token.startsWith("'")) {
+                        literals.add(literalValue(token));
+                    }
+                }
+                Operator.Output plan =
+                    clause.plan(tables, literals, _database.parallel());
+                for (int k = 0; k < tokens.size(); k += 1) {
+                    _input.next();
+                }
+                _lastKey = key;
+                _lastClause = clause;
+                _from = tables;
+                return plan;
+            }
+        }
 
         _input.next("select");
         ArrayList<String> columnNames = new ArrayList<>();
-        columnNames.add(columnName());
-        while (_input.nextIf(",")) {
-            columnNames.add(columnName());
-        }
+        do {
+            columnNames.add(selectedColumn());
+        } while (_input.nextIf(","));
         _input.next("from");
-        Table fromTable = tableName();
-
-        Table fromTable2 = null;
-
-        if (_input.nextIf(",")) {
-            twoTables = true;
-            fromTable2 = tableName();
+        ArrayList<String> fromNames = new ArrayList<>();
+        do {
+            fromNames.add(name());
+        } while (_input.nextIf(","));
+        lock(fromNames, _target);
+        Table[] tables = new Table[fromNames.size()];
+        for (int t = 0; t < tables.length; t += 1) {
+            tables[t] = table(fromNames.get(t));
         }
 
-        Table newTable;
         ArrayList<Condition> conditions = new ArrayList<>();
 
-        if (twoTables) {
-            newTable = fromTable.findInnerJoin(fromTable2);
-        } else {
-            newTable = fromTable;
-        }
-
         if (_input.nextIf("where")) {
-            conditions = conditionClause(newTable);
+            conditions = conditionClause(tables);
         }
-        newTable = newTable.select(columnNames, conditions);
-        return newTable;
+        ArrayList<String> groupBy = new ArrayList<>();
+        if (_input.nextIf("group")) {
+            _input.next("by");
+            do {
+                groupBy.add(columnName());
+            } while (_input.nextIf(","));
+        }
+        ArrayList<String> orderBy = new ArrayList<>();
+        if (_input.nextIf("order")) {
+            _input.next("by");
+            do {
+                orderBy.add(columnName());
+            } while (_input.nextIf(","));
+        }
+        clause = new PlanCache.Prepared(fromNames, tables, columnNames,
+                                        conditions, groupBy, orderBy);
+        ArrayList<String> literals = new ArrayList<>();
+        for (Condition condition : conditions) {
+            if (condition.getLiteral() != null) {
+                literals.add(condition.getLiteral());
+            }
+        }
+        if (key != null && _input.nextIs(";")) {
+            _database.plans().put(key, clause);
+            _lastKey = key;
+            _lastClause = clause;
+        }
+        _from = tables;
+        return clause.plan(tables, literals, _database.parallel());
+    }
 
+    /** Parse a column name or an aggregate, F(C) or count(*), from the
+     *  token stream, returning the column name or the text of the
+     *  aggregate, as Planner.plan expects. */
+    String selectedColumn() {
+        String name = columnName();
+        if (!_input.nextIf("(")) {
+            return name;
+        }
+        String argument = _input.nextIf("*") ? "*" : columnName();
+        _input.next(")");
+        return name + "(" + argument + ")";
     }
 
     /** Parse and return a valid name (identifier) from the token stream. */
@@ -298,7 +577,24 @@ class CommandInterpreter {
     /** Parse a valid table name from the token stream, and return the Table
      *  that it designates, which must be loaded. */
     Table tableName() {
+        return tableName(false);
+    }
+
+    /** Parse a valid table name from the token stream, lock the table for
+     *  writing iff WRITE, and otherwise for reading, and return the Table
+     *  that it designates, which must be loaded. */
+    Table tableName(boolean write) {
         String name = name();
+        if (write) {
+            lock(Collections.<String>emptyList(), name);
+        } else {
+            lock(Arrays.asList(name), null);
+        }
+        return table(name);
+    }
+
+    /** Return the table named NAME, which must be loaded. */
+    Table table(String name) {
         Table table = _database.get(name);
         if (table == null) {
             throw error("unknown table: %s", name);
@@ -306,11 +602,29 @@ class CommandInterpreter {
         return table;
     }
 
+    /** Lock the tables named READS for reading and the one named WRITE,
+     *  if it is not null, for writing, until the current statement is
+     *  done, unless it has already locked the tables it uses. */
+    private void lock(List<String> reads, String write) {
+        if (_locks.isEmpty()) {
+            _locks = _database.lock(reads, write);
+        }
+    }
+
     /** Parse a literal and return the string it represents (i.e., without
-     *  single quotes). */
+     *  single quotes).  If the value already appears in the database, the
+     *  result is the database's copy of it. */
     String literal() {
-        String lit = _input.next(Tokenizer.LITERAL);
-        return lit.substring(1, lit.length() - 1).trim();
+        return literalValue(_input.next(Tokenizer.LITERAL));
+    }
+
+    /** Return the string represented by the literal token LIT, as for
+     *  literal(). */
+    private String literalValue(String lit) {
+        lit = lit.substring(1, lit.length() - 1).trim();
+        ValueDictionary dictionary = _database.dictionary();
+        int code = dictionary.find(lit);
+        return code == -1 ? lit : dictionary.get(code);
     }
 
     /** Parse and return relational operator from the token stream. */
@@ -320,7 +634,9 @@ class CommandInterpreter {
 
     /** Parse and return a list of Conditions that apply to TABLES from the
      *  token stream.  This denotes the conjunction (`and') zero
-     *  or more Conditions. */
+     *  or more Conditions, which are returned in the order in which they
+     *  appear (see Condition.order for the order in which they are best
+     *  tested). */
     ArrayList<Condition> conditionClause(Table... tables) {
         ArrayList<Condition> conditions = new ArrayList<Condition>();
 
@@ -370,6 +686,24 @@ class CommandInterpreter {
 
     /** The command input source. */
     private Tokenizer _input;
+    /** Destination of results. */
+    private PrintStream _output;
     /** Database containing all tables. */
     private Database _database;
+    /** The locks held by the current statement. */
+    private List<Lock> _locks = Collections.emptyList();
+    /** The name of the table being created by the current statement, if
+     *  any, which its select clause locks for writing. */
+    private String _target;
+    /** The tables used by the last select clause parsed by the current
+     *  statement, if any. */
+    private Table[] _from;
+    /** The key and the clause of the last select clause taken from or
+     *  added to the PlanCache, which is checked before the cache itself,
+     *  since clients tend to repeat one clause. */
+    private List<String> _lastKey;
+    /** See _lastKey. */
+    private PlanCache.Prepared _lastClause;
+    /** True iff statistics on loads and stores are to be reported. */
+    private boolean _stats;
 }
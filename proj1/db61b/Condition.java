@@ -1,8 +1,15 @@
 package db61b;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 
-/** Represents a single 'where' condition in a 'select' command.
+import static db61b.Utils.*;
+
+/** Represents a single 'where' condition in a 'select' command.  Each
+ *  Condition is compiled when it is created into an Evaluator specialized
+ *  to its relation and to the kinds of its operands, so that testing a row
+ *  costs one call that involves no string dispatch and no allocation.
  *  @author Adam Shi*/
 class Condition {
 
@@ -10,9 +17,7 @@ class Condition {
      *  are column designators. and RELATION is one of the
      *  strings "<", ">", "<=", ">=", "=", or "!=". */
     Condition(Column col1, String relation, Column col2) {
-        _col1 = col1;
-        _col2 = col2;
-        _relation = relation;
+        this(col1, relation, col2, null);
     }
 
     /** A Condition representing COL1 RELATION 'VAL2', where COL1 is
@@ -21,8 +26,122 @@ class Condition {
      *  ">=", "=", or "!=".
      */
     Condition(Column col1, String relation, String val2) {
-        this(col1, relation, (Column) null);
+        this(col1, relation, null, val2);
+    }
+
+    /** A Condition representing COL1 RELATION COL2 if VAL2 is null, and
+     *  otherwise COL1 RELATION 'VAL2'. */
+    private Condition(Column col1, String relation, Column col2,
+                      String val2) {
+        _col1 = col1;
+        _col2 = col2;
         _val2 = val2;
+        _relation = relation;
+        _ifLess = relation.equals("<") || relation.equals("<=")
+            || relation.equals("!=");
+        _ifEqual = relation.equals("=") || relation.equals("<=")
+            || relation.equals(">=");
+        _ifGreater = relation.equals(">") || relation.equals(">=")
+            || relation.equals("!=");
+        _type = col2 == null ? col1.getType()
+            : Type.common(col1.getType(), col2.getType());
+        if (val2 != null && !_type.accepts(Type.kindOf(val2))) {
+            throw error("'%s' is not a valid %s value for column %s",
+                        val2, _type, col1.getName());
+        }
+        boolean equality = (relation.equals("=") || relation.equals("!="))
+            && _type == Type.STRING;
+        if (val2 != null && equality) {
+            _evaluator = new LiteralEquality();
+        } else if (val2 != null) {
+            _evaluator = new LiteralOrder();
+        } else if (equality) {
+            _evaluator = new ColumnEquality();
+        } else {
+            _evaluator = new ColumnOrder();
+        }
+    }
+
+    /** Return a new Condition like me, but with VAL2 as its literal in
+     *  place of mine if I compare with a literal, so that it may be tested
+     *  independently of me.  VAL2 is ignored if I compare two columns. */
+    Condition bind(String val2) {
+        return new Condition(_col1, _relation, _col2,
+                             _col2 == null ? val2 : null);
+    }
+
+    /** Return my first operand. */
+    Column getColumn1() {
+        return _col1;
+    }
+
+    /** Return my second operand if it is a literal, or null if it is a
+     *  column. */
+    String getLiteral() {
+        return _val2;
+    }
+
+    /** Return my relation: one of "<", ">", "<=", ">=", "=", or "!=". */
+    String getRelation() {
+        return _relation;
+    }
+
+    @Override
+    public String toString() {
+        return _col1.getName() + " " + _relation + " "
+            + (_col2 == null ? "'" + _val2 + "'" : _col2.getName());
+    }
+
+    /** Return true iff all my columns are selected from the WHICHth of
+     *  the tables from which they are selected. */
+    boolean appliesOnlyTo(int which) {
+        return _col1.getTable() == which
+            && (_col2 == null || _col2.getTable() == which);
+    }
+
+    /** Return true iff JOINED[k] for each k such that one of my columns
+     *  is selected from the kth of the tables from which they are
+     *  selected. */
+    boolean appliesWithin(boolean[] joined) {
+        return joined[_col1.getTable()]
+            && (_col2 == null || joined[_col2.getTable()]);
+    }
+
+    /** Return an estimate of the fraction of the rows of TABLES, from
+     *  which my columns are selected, that satisfy me, based on the
+     *  statistics of my columns.  Values are assumed to be spread evenly
+     *  over the distinct values of a column. */
+    double selectivity(Table[] tables) {
+        ColumnStatistics stats1 = statistics(_col1, tables);
+        if (stats1.distinct() == 0) {
+            return 0;
+        }
+        if (_col2 == null && !_relation.equals("=")
+            && !_relation.equals("!=")) {
+            boolean minHolds = holds(_type.compare(stats1.min(), _val2)),
+                maxHolds = holds(_type.compare(stats1.max(), _val2));
+            if (minHolds != maxHolds) {
+                return RANGE_SELECTIVITY;
+            }
+            return minHolds ? 1 : 0;
+        } else if (_col2 == null) {
+            double equal = _type.compare(_val2, stats1.min()) < 0
+                || _type.compare(_val2, stats1.max()) > 0 ? 0
+                : 1.0 / stats1.distinct();
+            return _ifEqual ? equal : 1 - equal;
+        } else if (_relation.equals("=") || _relation.equals("!=")) {
+            double equal =
+                1.0 / Math.max(stats1.distinct(),
+                               statistics(_col2, tables).distinct());
+            return _ifEqual ? equal : 1 - equal;
+        } else {
+            return RANGE_SELECTIVITY;
+        }
+    }
+
+    /** Return the statistics of the column COL, selected from TABLES. */
+    private static ColumnStatistics statistics(Column col, Table[] tables) {
+        return tables[col.getTable()].statistics(col.getColumn());
     }
 
     /** Assuming that ROWS are rows from the respective tables from which
@@ -37,19 +156,188 @@ class Condition {
             compVal2 = _col2.getFrom(rows);
         }
 
-        if (_relation.equals("<")) {
-            return (compVal1.compareTo(compVal2) < 0);
-        } else if (_relation.equals(">")) {
-            return (compVal1.compareTo(compVal2) > 0);
-        } else if (_relation.equals("<=")) {
-            return (compVal1.compareTo(compVal2) <= 0);
-        } else if (_relation.equals(">=")) {
-            return (compVal1.compareTo(compVal2) >= 0);
-        } else if (_relation.equals("=")) {
-            return (compVal1.compareTo(compVal2) == 0);
-        } else {
-            return (compVal1.compareTo(compVal2) != 0);
+        return holds(_type.compare(compVal1, compVal2));
+    }
+
+    /** Assuming that ROWS are numbers of rows in the respective TABLES
+     *  from which my columns are selected, returns the result of
+     *  performing the test I denote. */
+    boolean test(Table[] tables, int[] rows) {
+        return _evaluator.test(tables, rows);
+    }
+
+    /** Return true iff my relation holds between two values that compare
+     *  as COMPARISON (negative, zero, or positive). */
+    private boolean holds(int comparison) {
+        return comparison < 0 ? _ifLess
+            : comparison == 0 ? _ifEqual : _ifGreater;
+    }
+
+    /** Tests my relation on numbered rows of tables. */
+    private abstract static class Evaluator {
+        /** Return true iff the rows numbered ROWS of the respective TABLES
+         *  satisfy my relation. */
+        abstract boolean test(Table[] tables, int[] rows);
+
+        /** Return an estimate of the average cost of testing rows of
+         *  TABLES, relative to that of comparing two codes. */
+        abstract double cost(Table[] tables);
+    }
+
+    /** Tests "=" or "!=" between a column and my literal by comparing
+     *  codes. */
+    private class LiteralEquality extends Evaluator {
+        @Override
+        boolean test(Table[] tables, int[] rows) {
+            Table table = tables[_table];
+            return (table.code(rows[_table], _column)
+                    == literalCode(table.dictionary())) == _ifEqual;
         }
+
+        @Override
+        double cost(Table[] tables) {
+            return 1;
+        }
+
+        /** Return the code of my literal in DICT, or -1 if DICT does not
+         *  contain it.  The code is looked up again only if DICT differs
+         *  from the dictionary of the previous call, or if the literal was
+         *  missing and DICT has grown since. */
+        private int literalCode(ValueDictionary dict) {
+            if (dict != _dict
+                || _code == -1 && dict.size() != _dictSize) {
+                _code = dict.find(_val2);
+                _dict = dict;
+                _dictSize = dict.size();
+            }
+            return _code;
+        }
+
+        /** Table and column of my first operand. */
+        private final int _table = _col1.getTable(),
+            _column = _col1.getColumn();
+        /** The dictionary in which _val2 was last looked up. */
+        private ValueDictionary _dict;
+        /** The size of _dict at that time. */
+        private int _dictSize;
+        /** The code of _val2 in _dict (-1 if absent). */
+        private int _code;
+    }
+
+    /** Tests "=" or "!=" between two columns, by comparing codes when
+     *  they share a dictionary. */
+    private class ColumnEquality extends Evaluator {
+        @Override
+        boolean test(Table[] tables, int[] rows) {
+            Table table1 = tables[_table1], table2 = tables[_table2];
+            int code1 = table1.code(rows[_table1], _column1),
+                code2 = table2.code(rows[_table2], _column2);
+            if (table1.dictionary() == table2.dictionary()) {
+                return (code1 == code2) == _ifEqual;
+            }
+            return table1.dictionary().get(code1)
+                .equals(table2.dictionary().get(code2)) == _ifEqual;
+        }
+
+        @Override
+        double cost(Table[] tables) {
+            return tables[_table1].dictionary()
+                == tables[_table2].dictionary() ? 1 : COMPARE_COST;
+        }
+
+        /** Tables and columns of my operands. */
+        private final int _table1 = _col1.getTable(),
+            _column1 = _col1.getColumn(),
+            _table2 = _col2.getTable(),
+            _column2 = _col2.getColumn();
+    }
+
+    /** Tests an ordering relation between a column and my literal, or
+     *  any relation if they are numbers, remembering the outcome for each
+     *  code of the column's dictionary so that each distinct value is
+     *  compared with the literal only once. */
+    private class LiteralOrder extends Evaluator {
+        @Override
+        boolean test(Table[] tables, int[] rows) {
+            Table table = tables[_table];
+            int code = table.code(rows[_table], _column);
+            ValueDictionary dict = table.dictionary();
+            if (dict != _dict) {
+                _dict = dict;
+                _outcomes = new byte[dict.size()];
+            } else if (code >= _outcomes.length) {
+                _outcomes = Arrays.copyOf(_outcomes, dict.size());
+            }
+            if (_outcomes[code] == UNKNOWN) {
+                _outcomes[code] =
+                    holds(_type.compare(dict.get(code), _val2))
+                    ? TRUE : FALSE;
+            }
+            return _outcomes[code] == TRUE;
+        }
+
+        /** Each distinct value of the column is compared once, and each
+         *  row then costs a lookup. */
+        @Override
+        double cost(Table[] tables) {
+            Table table = tables[_table];
+            return 1 + COMPARE_COST * table.statistics(_column).distinct()
+                / Math.max(1, table.size());
+        }
+
+        /** Table and column of my first operand. */
+        private final int _table = _col1.getTable(),
+            _column = _col1.getColumn();
+        /** The dictionary to whose codes _outcomes refers. */
+        private ValueDictionary _dict;
+        /** For each code of _dict, UNKNOWN, TRUE, or FALSE, according
+         *  as whether its value satisfies me. */
+        private byte[] _outcomes;
+    }
+
+    /** Tests an ordering relation between two columns, or any relation
+     *  if they are numbers. */
+    private class ColumnOrder extends Evaluator {
+        @Override
+        boolean test(Table[] tables, int[] rows) {
+            Table table1 = tables[_table1], table2 = tables[_table2];
+            int code1 = table1.code(rows[_table1], _column1),
+                code2 = table2.code(rows[_table2], _column2);
+            return holds(_type.compare(table1.dictionary(), code1,
+                                       table2.dictionary(), code2));
+        }
+
+        @Override
+        double cost(Table[] tables) {
+            return _type.isNumeric() ? 2 : COMPARE_COST;
+        }
+
+        /** Tables and columns of my operands. */
+        private final int _table1 = _col1.getTable(),
+            _column1 = _col1.getColumn(),
+            _table2 = _col2.getTable(),
+            _column2 = _col2.getColumn();
+    }
+
+    /** Return the expected cost of testing me on rows of TABLES per row
+     *  that I reject (see Evaluator.cost and selectivity): smaller is
+     *  better, and infinite if I am expected to reject none. */
+    private double rank(Table[] tables) {
+        return _evaluator.cost(tables) / (1 - selectivity(tables));
+    }
+
+    /** Reorder CONDITIONS, a conjunction on rows of TABLES, so that those
+     *  that reject rows most cheaply come first, and the tests in
+     *  test(CONDITIONS, ...) stop as early as possible.  Testing
+     *  independent conditions in increasing order of rank costs least
+     *  on average. */
+    static void order(List<Condition> conditions, Table[] tables) {
+        HashMap<Condition, Double> ranks = new HashMap<>();
+        for (Condition cond : conditions) {
+            ranks.put(cond, cond.rank(tables));
+        }
+        conditions.sort((c1, c2) -> Double.compare(ranks.get(c1),
+                                                   ranks.get(c2)));
     }
 
     /** Return true iff ROWS satisfies all CONDITIONS. */
@@ -62,6 +350,29 @@ class Condition {
         return true;
     }
 
+    /** Return true iff the rows numbered ROWS of the respective TABLES
+     *  satisfy all CONDITIONS. */
+    static boolean test(List<Condition> conditions, Table[] tables,
+                        int[] rows) {
+        for (Condition cond : conditions) {
+            if (!cond.test(tables, rows)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Assumed fraction of rows that satisfy an ordering relation whose
+     *  outcome the statistics do not settle. */
+    private static final double RANGE_SELECTIVITY = 1.0 / 3;
+
+    /** Assumed cost of comparing two values as strings, relative to that
+     *  of comparing two codes. */
+    private static final double COMPARE_COST = 8;
+
+    /** Values of LiteralOrder._outcomes. */
+    private static final byte UNKNOWN = 0, TRUE = 1, FALSE = 2;
+
     /** The operands of this condition.  _col2 is null if the second operand
      *  is a literal. */
     private Column _col1, _col2;
@@ -69,4 +380,11 @@ class Condition {
     private String _val2;
     /** The conditional operator. */
     private String _relation;
+    /** The type as which my operands are compared. */
+    private final Type _type;
+    /** Whether my relation holds between values the first of which is
+     *  less than, equal to, or greater than the second. */
+    private final boolean _ifLess, _ifEqual, _ifGreater;
+    /** Tests my relation on numbered rows. */
+    private final Evaluator _evaluator;
 }
@@ -1,32 +1,467 @@
 package db61b;
 
-import java.util.HashMap;
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+import static db61b.Utils.*;
 
 /** A collection of Tables, indexed by name. Stored in a HashMap representation.
+ *
+ *  A database may be made durable by opening it on a directory.  Each
+ *  change made through create, load, insert, or createIndex is then
+ *  recorded in a write-ahead log (see Log) in that directory, and the
+ *  changed tables are periodically checkpointed: written as binary
+ *  snapshots and listed, with their indexes, in a manifest, after which
+ *  the log is emptied.  Opening the directory again reads the manifest and
+ *  then replays the log.  Each checkpoint starts a new generation,
+ *  recorded at the head of both the manifest and the emptied log, and
+ *  a log older than the manifest (left by a crash after the manifest
+ *  was written but before the log was emptied) is not replayed, since
+ *  the snapshots already reflect it.  A change is acknowledged only once
+ *  its log records are on disk.
+ *
+ *  A table loaded from a file is not read until it is first used, and
+ *  may be dropped again to fit a memory budget, to be read again when
+ *  next used (see TableCache).  Such a table is read for good, and no
+ *  longer dropped, once it is changed by insert or createIndex.
+ *
+ *  A database may be shared by threads, each of which locks the tables
+ *  that a statement uses (see lock) for as long as the statement runs:
+ *  for reading, which any number of threads may do at once, or for
+ *  writing, which excludes all others.  Create, load, insert, and
+ *  createIndex require a write lock on the table they change.
  *  @author Adam Shi*/
 class Database {
     /** An empty database. */
     public Database() {
-        _tables = new HashMap<String, Table>();
+        _tables = new ConcurrentHashMap<String, Table>();
+        _dictionary = new ValueDictionary();
+    }
+
+    /** Return the dictionary shared by the tables of this database, so
+     *  that equal values in different tables are stored once and have
+     *  equal codes. */
+    public ValueDictionary dictionary() {
+        return _dictionary;
+    }
+
+    /** Return the cache of the select clauses parsed against this
+     *  database, which is shared by all its users. */
+    PlanCache plans() {
+        return _plans;
     }
 
     /** Return the Table whose name is NAME stored in this database, or null
-     *  if there is no such table. */
+     *  if there is no such table.  A table that has been loaded but not yet
+     *  read, or dropped since, is read. */
     public Table get(String name) {
-        return (Table) _tables.get(name);
+        Table table = _tables.get(name);
+        return table != null ? table : _cache.get(name);
     }
 
     /** Set or replace the table named NAME in THIS to TABLE.  TABLE and
-     *  NAME must not be null, and NAME must be a valid name for a table. */
+     *  NAME must not be null, and NAME must be a valid name for a table.
+     *  The change is not logged. */
     public void put(String name, Table table) {
         if (name == null || table == null) {
             throw new IllegalArgumentException("null argument");
         }
+        _cache.remove(name);
+        _tables.put(name, table);
+    }
+
+    /** Limit the memory taken by tables loaded from files, which may be
+     *  read again when needed, to about BYTES. */
+    void setMemoryBudget(long bytes) {
+        _cache.setBudget(bytes);
+    }
+
+    /** Keep the results of selects, within about BYTES, so that a select
+     *  repeated while its tables are unchanged need not be run again (see
+     *  ResultCache).  Any results already kept are discarded. */
+    void setResultBudget(long bytes) {
+        _results = new ResultCache(bytes);
+    }
+
+    /** Scan large tables in parallel in selects from them iff PARALLEL
+     *  (see Planner.plan). */
+    void setParallel(boolean parallel) {
+        _parallel = parallel;
+    }
+
+    /** Return true iff selects from my large tables scan them in
+     *  parallel. */
+    boolean parallel() {
+        return _parallel;
+    }
+
+    /** Return the cache of the results of selects from my tables, or
+     *  null if results are not kept. */
+    ResultCache results() {
+        return _results;
+    }
+
+    /** Acquire read locks on the tables named READS and a write lock on
+     *  the table named WRITE, unless it is null, returning the locks
+     *  acquired, for unlock to release.  To exclude deadlock, a statement
+     *  acquires all the locks it needs at once, and all are acquired in
+     *  order of table name.  Before any write lock, a read lock on
+     *  _updates is acquired, so that a checkpoint may exclude all changes
+     *  at once. */
+    List<Lock> lock(Collection<String> reads, String write) {
+        TreeMap<String, Boolean> writes = new TreeMap<>();
+        for (String name : reads) {
+            writes.put(name, false);
+        }
+        List<Lock> locks = new ArrayList<>();
+        if (write != null) {
+            writes.put(write, true);
+            locks.add(_updates.readLock());
+        }
+        for (Map.Entry<String, Boolean> entry : writes.entrySet()) {
+            ReentrantReadWriteLock lock =
+                _locks.computeIfAbsent(entry.getKey(),
+                                       k -> new ReentrantReadWriteLock());
+            locks.add(entry.getValue() ? lock.writeLock() : lock.readLock());
+        }
+        for (Lock lock : locks) {
+            lock.lock();
+        }
+        return locks;
+    }
+
+    /** Release LOCKS, acquired by lock. */
+    void unlock(List<Lock> locks) {
+        for (int k = locks.size() - 1; k >= 0; k -= 1) {
+            locks.get(k).unlock();
+        }
+    }
+
+    /** Recover the tables kept in DIRECTORY, which is created if need
+     *  be, and keep all further changes to THIS durably there.  A log
+     *  left from before the last checkpoint is emptied before anything
+     *  is added to it, so that what is added is not skipped with it on
+     *  the next recovery. */
+    void open(String directory) {
+        _directory = Paths.get(directory);
+        File dir = _directory.toFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw error("cannot create directory %s", directory);
+        }
+        Log.readAll(_directory.resolve(MANIFEST), this::apply);
+        _replaying = _generation == 0;
+        _log = new Log(_directory.resolve(LOG), this::replay);
+        if (_log.size() == 0 || !_replaying) {
+            _log.clear();
+            _log.sync(_log.append(generationRecord()));
+        }
+    }
+
+    /** Redo the change described by RECORD, read from the log, unless it
+     *  is already reflected in the snapshots listed in the manifest: that
+     *  is, unless the log began before the last checkpoint, which wrote
+     *  the manifest but stopped before the log was emptied. */
+    private void replay(String[] record) {
+        if (record[0].equals("generation")) {
+            _replaying = Long.parseLong(record[1]) >= _generation;
+        } else if (_replaying) {
+            apply(record);
+        }
+    }
+
+    /** Return the record, heading the log and listed in the manifest,
+     *  that gives the current generation. */
+    private String[] generationRecord() {
+        return new String[] { "generation", Long.toString(_generation) };
+    }
+
+    /** Return the names of my tables. */
+    List<String> tableNames() {
+        List<String> names = new ArrayList<>(_tables.keySet());
+        names.addAll(_cache.names());
+        return names;
+    }
+
+    /** Set or replace the table named NAME to TABLE, logging it. */
+    void create(String name, Table table) {
+        put(name, table);
+        if (_log != null) {
+            String[] record = new String[table.columns() + 2];
+            record[0] = "create";
+            record[1] = name;
+            for (int c = 0; c < table.columns(); c += 1) {
+                record[c + 2] = table.getHeading(c);
+            }
+            long last = _log.append(record);
+            for (int row = 0; row < table.size(); row += 1) {
+                last = _log.append(insertRecord(name, table, row));
+            }
+            _dirty.add(name);
+            _log.sync(last);
+        }
+    }
+
+    /** Set or replace the table named NAME to the one that SOURCE reads
+     *  from a file when it is needed.  Rather than logging its rows, I
+     *  checkpoint it as soon as the statement is done, so that it
+     *  survives independently of the file. */
+    void load(String name, Supplier<Table> source) {
+        _tables.remove(name);
+        _cache.register(name, source);
+        if (_log != null) {
+            _dirty.add(name);
+            _checkpointDue = true;
+        }
+    }
+
+    /** Add ROW to the table named NAME, logging it, and return true iff
+     *  it was not already present. */
+    boolean insert(String name, Row row) {
+        return insert(name, Collections.singletonList(row)) == 1;
+    }
+
+    /** Add ROWS to the table named NAME as a batch (see Table.addAll),
+     *  logging those added, and return how many were added. */
+    int insert(String name, Collection<Row> rows) {
+        Table table = writable(name);
+        int size = table.size();
+        int added = table.addAll(rows);
+        logInserts(name, table, size);
+        return added;
+    }
+
+    /** Add the rows of ROWS to the table named NAME as a batch (see
+     *  Table.addAll), logging those added, and return how many were
+     *  added. */
+    int insert(String name, Table rows) {
+        Table table = writable(name);
+        int size = table.size();
+        int added = table.addAll(rows);
+        logInserts(name, table, size);
+        return added;
+    }
+
+    /** Log the rows of TABLE, named NAME, numbered FIRST and up, which
+     *  have just been added. */
+    private void logInserts(String name, Table table, int first) {
+        if (_log != null && first < table.size()) {
+            long last = 0;
+            for (int row = first; row < table.size(); row += 1) {
+                last = _log.append(insertRecord(name, table, row));
+            }
+            _dirty.add(name);
+            _log.sync(last);
+        }
+    }
+
+    /** Create an index named INDEX on the columns named COLUMNNAMES of the
+     *  table named NAME, logging it. */
+    void createIndex(String name, String index, List<String> columnNames) {
+        writable(name).createIndex(index, columnNames);
+        if (_log != null) {
+            _log.sync(_log.append(indexRecord(name, index, columnNames)));
+        }
+    }
+
+    /** Checkpoint if a load or the length of the log calls for it.  The
+     *  caller must hold no locks. */
+    void checkpointIfNeeded() {
+        if (_log != null
+            && (_checkpointDue || _log.size() > CHECKPOINT_SIZE)) {
+            checkpoint();
+        }
+    }
+
+    /** Write each changed table as a snapshot, list all my tables and
+     *  their indexes in the manifest, and empty the log.  Waits for all
+     *  changes in progress to finish, and holds off others until done;
+     *  the caller must hold no locks. */
+    void checkpoint() {
+        _updates.writeLock().lock();
+        try {
+            writeCheckpoint();
+        } finally {
+            _updates.writeLock().unlock();
+        }
+    }
+
+    /** Perform a checkpoint, while no tables are being changed. */
+    private void writeCheckpoint() {
+        if (_log == null) {
+            return;
+        }
+        for (String name : _dirty) {
+            new TableWriter(_directory.resolve(name).toString())
+                .writeBinary(get(name));
+        }
+        _generation += 1;
+        List<String[]> manifest = new ArrayList<>();
+        manifest.add(generationRecord());
+        for (String name : tableNames()) {
+            manifest.add(new String[] { "snapshot", name });
+        }
+        for (Map.Entry<String, Table> entry : _tables.entrySet()) {
+            for (Index index : entry.getValue().indexes()) {
+                manifest.add(indexRecord(entry.getKey(), index.getName(),
+                                         index.columnNames()));
+            }
+        }
+        Log.writeAll(_directory.resolve(MANIFEST), manifest);
+        _log.clear();
+        _log.sync(_log.append(generationRecord()));
+        _dirty.clear();
+        _checkpointDue = false;
+    }
+
+    /** Checkpoint and stop logging, if I am durable. */
+    void close() {
+        _updates.writeLock().lock();
+        try {
+            if (_log != null) {
+                writeCheckpoint();
+                _log.close();
+                _log = null;
+            }
+        } finally {
+            _updates.writeLock().unlock();
+        }
+    }
+
+    /** Redo the change described by RECORD, read from the manifest or the
+     *  log. */
+    private void apply(String[] record) {
+        String name = record[1];
+        switch (record[0]) {
+        case "generation":
+            _generation = Long.parseLong(record[1]);
+            break;
+        case "snapshot":
+            _tables.remove(name);
+            _cache.register(name, snapshot(name));
+            break;
+        case "create":
+            put(name, Table.withHeadings(Arrays.copyOfRange(record, 2,
+                                                            record.length),
+                                         _dictionary));
+            _dirty.add(name);
+            break;
+        case "insert":
+            String[] values = Arrays.copyOfRange(record, 2, record.length);
+            writable(name).add(new Row(values));
+            _dirty.add(name);
+            break;
+        case "index":
+            List<String> columnNames =
+                Arrays.asList(record).subList(3, record.length);
+            writable(name).createIndex(record[2], columnNames);
+            break;
+        default:
+            throw error("unknown log record: %s", record[0]);
+        }
+    }
+
+    /** Return a source that reads the snapshot of the table named
+     *  NAME. */
+    private Supplier<Table> snapshot(String name) {
+        TableReader reader =
+            new TableReader(_directory.resolve(name).toString(), _dictionary);
+        return reader::readBinary;
+    }
+
+    /** Return the table named NAME, read and kept for good so that it
+     *  may be changed. */
+    private Table writable(String name) {
+        Table table = _cache.take(name);
+        if (table == null) {
+            return _tables.get(name);
+        }
         _tables.put(name, table);
+        return table;
+    }
+
+    /** Return a log record for row number ROW of TABLE, named NAME. */
+    private static String[] insertRecord(String name, Table table, int row) {
+        String[] record = new String[table.columns() + 2];
+        record[0] = "insert";
+        record[1] = name;
+        for (int c = 0; c < table.columns(); c += 1) {
+            record[c + 2] = table.get(row, c);
+        }
+        return record;
     }
 
+    /** Return a log record for an index named INDEX on the columns named
+     *  COLUMNNAMES of the table named NAME. */
+    private static String[] indexRecord(String name, String index,
+                                        List<String> columnNames) {
+        String[] record = new String[columnNames.size() + 3];
+        record[0] = "index";
+        record[1] = name;
+        record[2] = index;
+        for (int k = 0; k < columnNames.size(); k += 1) {
+            record[k + 3] = columnNames.get(k);
+        }
+        return record;
+    }
+
+    /** Name of the manifest file in a database directory. */
+    static final String MANIFEST = "manifest";
+    /** Name of the log file in a database directory. */
+    static final String LOG = "wal.log";
+    /** Size in bytes of the log that causes a checkpoint. */
+    static final long CHECKPOINT_SIZE = 1 << 24;
+
     /** Contains the tables of the Database. Key to each table
      *  is its title.
      */
-    private HashMap<String, Table> _tables;
+    private ConcurrentHashMap<String, Table> _tables;
+    /** Dictionary for the values of my tables. */
+    private ValueDictionary _dictionary;
+    /** True iff selects scan my large tables in parallel. */
+    private volatile boolean _parallel;
+    /** Results of selects from my tables, or null if they are not
+     *  kept. */
+    private volatile ResultCache _results;
+    /** Select clauses parsed against my tables. */
+    private final PlanCache _plans = new PlanCache();
+    /** My tables that have been loaded from files and not changed. */
+    private final TableCache _cache = new TableCache();
+    /** Locks on my tables, by name.  A lock outlives its table, so that
+     *  a table may be replaced under it. */
+    private final ConcurrentHashMap<String, ReentrantReadWriteLock> _locks =
+        new ConcurrentHashMap<>();
+    /** Held for reading by each change to my tables, and for writing by
+     *  a checkpoint. */
+    private final ReentrantReadWriteLock _updates =
+        new ReentrantReadWriteLock();
+    /** The directory in which I am kept, if I am durable. */
+    private Path _directory;
+    /** My write-ahead log, or null if I am not durable. */
+    private volatile Log _log;
+    /** Names of the tables changed since the last checkpoint. */
+    private final Set<String> _dirty = ConcurrentHashMap.newKeySet();
+    /** True iff a checkpoint is called for regardless of the log's
+     *  length. */
+    private volatile boolean _checkpointDue;
+    /** Number of checkpoints taken of me so far.  The manifest and the
+     *  log each start with a record of the generation in which they were
+     *  written, and the log's records are reflected in the snapshots
+     *  unless its generation is at least the manifest's. */
+    private long _generation;
+    /** True iff the records being read from the log are to be redone
+     *  (see replay). */
+    private boolean _replaying;
 }
@@ -0,0 +1,244 @@
+package db61b;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static db61b.Utils.*;
+
+/** A secondary index on one or more columns of a Table.  Rows are kept in
+ *  a sorted map keyed on the values of the indexed columns, compared
+ *  lexicographically, each column's values in the order of its type
+ *  (the same order Condition uses), so that both point lookups and range
+ *  queries on the leading columns take logarithmic time plus the size
+ *  of the answer.
+ *  @author Adam Shi
+ */
+class Index {
+
+    /** A new, empty index named NAME on the columns of TABLE whose titles
+     *  are COLUMNNAMES, in order of significance. */
+    Index(String name, Table table, List<String> columnNames) {
+        if (columnNames.isEmpty()) {
+            throw error("index %s has no columns", name);
+        }
+        _name = name;
+        _table = table;
+        _columns = new int[columnNames.size()];
+        _types = new Type[_columns.length];
+        for (int k = 0; k < _columns.length; k += 1) {
+            Column column = new Column(columnNames.get(k), table);
+            _columns[k] = column.getColumn();
+            _types[k] = column.getType();
+        }
+        _entries = new TreeMap<>(this::compareKeys);
+    }
+
+    /** Return my name. */
+    String getName() {
+        return _name;
+    }
+
+    /** Return the titles of my columns, in order of significance. */
+    List<String> columnNames() {
+        List<String> names = new ArrayList<>();
+        for (int c : _columns) {
+            names.add(_table.getTitle(c));
+        }
+        return names;
+    }
+
+    /** Return an estimate of the number of bytes I occupy: each distinct
+     *  key costs a map entry, a Row, and a list of row numbers. */
+    long memory() {
+        return (long) _entries.size() * (ENTRY_BYTES + 4 * _columns.length)
+            + 4L * _table.size();
+    }
+
+    /** Record row number ROW of my table. */
+    void add(int row) {
+        String[] values = new String[_columns.length];
+        for (int k = 0; k < values.length; k += 1) {
+            values[k] = _table.get(row, _columns[k]);
+        }
+        Row key = new Row(values);
+        IntList bucket = _entries.get(key);
+        if (bucket == null) {
+            bucket = new IntList();
+            _entries.put(key, bucket);
+        }
+        bucket.add(row);
+    }
+
+    /** Return the numbers of the rows that could satisfy CONDITIONS, all of
+     *  which apply to rows of my table, which is the WHICHth of the tables
+     *  from which their columns are selected, as determined by those
+     *  conditions that compare my key columns with literals, or null if
+     *  there are no such conditions.  Uses equality conditions on the
+     *  longest possible prefix of my key columns or, failing that, range
+     *  conditions on my first key column.  The rows returned must still
+     *  be tested against all of CONDITIONS. */
+    IntList find(List<Condition> conditions, int which) {
+        ArrayList<String> prefix = new ArrayList<String>();
+        for (int k = 0; k < _columns.length; k += 1) {
+            String value = null;
+            for (Condition cond : conditions) {
+                if (constrains(cond, which, k)
+                    && cond.getRelation().equals("=")) {
+                    value = cond.getLiteral();
+                }
+            }
+            if (value == null) {
+                break;
+            }
+            prefix.add(value);
+        }
+        if (!prefix.isEmpty()) {
+            return lookup(prefix.toArray(new String[prefix.size()]));
+        }
+
+        String low, high;
+        boolean lowInclusive, highInclusive, bounded;
+        low = high = null;
+        lowInclusive = highInclusive = true;
+        bounded = false;
+        for (Condition cond : conditions) {
+            if (!constrains(cond, which, 0)) {
+                continue;
+            }
+            String lit = cond.getLiteral();
+            switch (cond.getRelation()) {
+            case ">":
+                if (low == null || _types[0].compare(lit, low) >= 0) {
+                    low = lit;
+                    lowInclusive = false;
+                }
+                break;
+            case ">=":
+                if (low == null || _types[0].compare(lit, low) > 0) {
+                    low = lit;
+                    lowInclusive = true;
+                }
+                break;
+            case "<":
+                if (high == null || _types[0].compare(lit, high) <= 0) {
+                    high = lit;
+                    highInclusive = false;
+                }
+                break;
+            case "<=":
+                if (high == null || _types[0].compare(lit, high) < 0) {
+                    high = lit;
+                    highInclusive = true;
+                }
+                break;
+            default:
+                continue;
+            }
+            bounded = true;
+        }
+        if (!bounded) {
+            return null;
+        }
+        return range(low, lowInclusive, high, highInclusive);
+    }
+
+    /** Return true iff COND compares my Kth key column with a literal,
+     *  where my table is the WHICHth of those COND selects from. */
+    private boolean constrains(Condition cond, int which, int k) {
+        Column col = cond.getColumn1();
+        return cond.getLiteral() != null && col.getTable() == which
+            && col.getColumn() == _columns[k];
+    }
+
+    /** Return the numbers of the rows whose leading key columns equal the
+     *  values in PREFIX, which has at most as many elements as I have key
+     *  columns. */
+    IntList lookup(String[] prefix) {
+        return flatten(_entries.subMap(new Row(prefix), true,
+                                       above(prefix), false));
+    }
+
+    /** Return the numbers of the rows whose first key column lies between
+     *  LOW and HIGH.  A null bound is unlimited; LOWINCLUSIVE and
+     *  HIGHINCLUSIVE tell whether the respective bounds are themselves
+     *  included. */
+    IntList range(String low, boolean lowInclusive,
+                  String high, boolean highInclusive) {
+        NavigableMap<Row, IntList> entries = _entries;
+        Row lowKey, highKey;
+        lowKey = low == null ? null
+            : lowInclusive ? new Row(new String[] { low }) : above(low);
+        highKey = high == null ? null
+            : highInclusive ? above(high) : new Row(new String[] { high });
+        if (lowKey != null && highKey != null
+            && compareKeys(lowKey, highKey) >= 0) {
+            return new IntList();
+        }
+        if (lowKey != null) {
+            entries = entries.tailMap(lowKey, true);
+        }
+        if (highKey != null) {
+            entries = entries.headMap(highKey, false);
+        }
+        return flatten(entries);
+    }
+
+    /** Return a bound that lies just above every key that begins with
+     *  PREFIX (all of which lie at or above PREFIX itself). */
+    private static Row above(String... prefix) {
+        String[] bound = Arrays.copyOf(prefix, prefix.length + 1);
+        bound[prefix.length] = TOP;
+        return new Row(bound);
+    }
+
+    /** Return the concatenation of the buckets in ENTRIES. */
+    private static IntList flatten(NavigableMap<Row, IntList> entries) {
+        IntList result = new IntList();
+        for (IntList bucket : entries.values()) {
+            result.addAll(bucket);
+        }
+        return result;
+    }
+
+    /** A value, distinguished by identity, that is greater than any
+     *  other in a key.  Used only in search bounds. */
+    private static final String TOP = new String("");
+    /** Estimated size in bytes of the objects that hold one key. */
+    private static final int ENTRY_BYTES = 96;
+
+    /** Return a negative, zero, or positive value as key K1 comes
+     *  before, with, or after K2.  Keys are ordered lexicographically by
+     *  column value, in the order of the columns' types, with TOP above
+     *  all other values and a key before all of its extensions. */
+    private int compareKeys(Row k1, Row k2) {
+        int n = Math.min(k1.size(), k2.size());
+        for (int i = 0; i < n; i += 1) {
+            String v1 = k1.get(i), v2 = k2.get(i);
+            if (v1 == TOP || v2 == TOP) {
+                if (v1 != v2) {
+                    return v1 == TOP ? 1 : -1;
+                }
+                continue;
+            }
+            int c = _types[i].compare(v1, v2);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return k1.size() - k2.size();
+    }
+
+    /** Name of this index. */
+    private String _name;
+    /** The table I index. */
+    private Table _table;
+    /** Numbers of the indexed columns, most significant first. */
+    private int[] _columns;
+    /** Types of the indexed columns. */
+    private Type[] _types;
+    /** Maps keys to the numbers of the rows that have them. */
+    private TreeMap<Row, IntList> _entries;
+}
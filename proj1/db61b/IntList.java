@@ -0,0 +1,54 @@
+package db61b;
+
+import java.util.Arrays;
+
+/** A growable list of ints, for holding row numbers and codes without
+ *  boxing them.
+ *  @author Adam Shi
+ */
+class IntList {
+
+    /** An empty list. */
+    IntList() {
+        _items = new int[INITIAL_SIZE];
+    }
+
+    /** Return my number of items. */
+    int size() {
+        return _size;
+    }
+
+    /** Return my Kth item.  Requires 0 <= K < size(). */
+    int get(int k) {
+        return _items[k];
+    }
+
+    /** Replace my Kth item with VALUE.  Requires 0 <= K < size(). */
+    void set(int k, int value) {
+        _items[k] = value;
+    }
+
+    /** Append VALUE to THIS. */
+    void add(int value) {
+        if (_size == _items.length) {
+            _items = Arrays.copyOf(_items, 2 * _size);
+        }
+        _items[_size] = value;
+        _size += 1;
+    }
+
+    /** Append all of OTHER's items to THIS. */
+    void addAll(IntList other) {
+        for (int k = 0; k < other._size; k += 1) {
+            add(other._items[k]);
+        }
+    }
+
+    /** Initial capacity of a list. */
+    private static final int INITIAL_SIZE = 4;
+
+    /** My items, in positions 0 .. _size - 1. */
+    private int[] _items;
+    /** My number of items. */
+    private int _size;
+}
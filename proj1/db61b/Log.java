@@ -0,0 +1,336 @@
+package db61b;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static db61b.Utils.*;
+
+/** An append-only file of records, each a sequence of strings, that is
+ *  made durable with group commit: a record appended is numbered, and
+ *  whoever appended it waits (see sync) until it has been written and
+ *  forced to disk.  The first waiter writes and forces all the records
+ *  pending at that moment, and any that wait meanwhile are covered by
+ *  it or by the next such write, so that concurrent writers share one
+ *  disk flush rather than paying for one each.  A record whose sync has
+ *  returned is never lost in a crash.
+ *
+ *  Each record is stored as its length in bytes and a CRC-32 of its
+ *  contents, both ints, followed by the number of strings and each
+ *  string as an int length and that many bytes of UTF-8.  A record that
+ *  was only partly written when the program stopped fails its check,
+ *  and it and anything after it are ignored when the log is read back,
+ *  and cut off before anything more is appended.
+ *  @author Adam Shi
+ */
+class Log {
+
+    /** A log kept in FILE, which is created if it does not exist.  Its
+     *  valid records are first passed, in order, to REPLAY. */
+    Log(Path file, Consumer<String[]> replay) {
+        _file = file;
+        try {
+            _channel = FileChannel.open(file, CREATE, READ, WRITE);
+            long valid = read(_channel, replay);
+            _channel.truncate(valid);
+            _channel.position(valid);
+        } catch (IOException e) {
+            throw error("trouble opening log %s", file);
+        }
+    }
+
+    /** Pass each of the valid records of CHANNEL, from its beginning, to
+     *  ACTION, and return the position just after the last of them. */
+    private static long read(FileChannel channel, Consumer<String[]> action)
+        throws IOException {
+        long size = channel.size(), pos = 0;
+        ByteBuffer header = ByteBuffer.allocate(8);
+        while (pos + header.capacity() <= size) {
+            header.clear();
+            if (!readFully(channel, header, pos)) {
+                break;
+            }
+            int length = header.getInt(0), checksum = header.getInt(4);
+            if (length < 4 || pos + 8 + length > size) {
+                break;
+            }
+            ByteBuffer body = ByteBuffer.allocate(length);
+            if (!readFully(channel, body, pos + 8)) {
+                break;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(body.array());
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            String[] fields = decode(body);
+            if (fields == null) {
+                break;
+            }
+            action.accept(fields);
+            pos += 8 + length;
+        }
+        return pos;
+    }
+
+    /** Fill BUF, which is cleared, with the bytes of CHANNEL from
+     *  position POS on, reading as often as need be.  Return false if
+     *  CHANNEL ends first. */
+    private static boolean readFully(FileChannel channel, ByteBuffer buf,
+                                     long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, pos + buf.position()) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Return the strings in BODY, the contents of a record, or null if
+     *  it is malformed. */
+    private static String[] decode(ByteBuffer body) {
+        body.rewind();
+        int count = body.getInt();
+        if (count < 0 || count > body.remaining() / 4) {
+            return null;
+        }
+        String[] fields = new String[count];
+        for (int i = 0; i < count; i += 1) {
+            if (body.remaining() < 4) {
+                return null;
+            }
+            int len = body.getInt();
+            if (len < 0 || len > body.remaining()) {
+                return null;
+            }
+            fields[i] = new String(body.array(), body.position(), len, UTF_8);
+            body.position(body.position() + len);
+        }
+        return fields;
+    }
+
+    /** Encode a record consisting of FIELDS, as it is stored, on
+     *  OUT. */
+    private static void encode(String[] fields, DataOutputStream out)
+        throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream body = new DataOutputStream(record);
+        body.writeInt(fields.length);
+        for (String field : fields) {
+            byte[] bytes = field.getBytes(UTF_8);
+            body.writeInt(bytes.length);
+            body.write(bytes);
+        }
+        byte[] bytes = record.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        out.writeInt(bytes.length);
+        out.writeInt((int) crc.getValue());
+        out.write(bytes);
+    }
+
+    /** Append a record consisting of FIELDS, returning its number, for
+     *  sync.  The record is not durable until sync has returned. */
+    synchronized long append(String... fields) {
+        if (_failure != null) {
+            throw _failure;
+        }
+        try {
+            encode(fields, new DataOutputStream(_pending));
+        } catch (IOException e) {
+            throw error("trouble writing to log %s", _file);
+        }
+        _appended += 1;
+        return _appended;
+    }
+
+    /** Wait until the record numbered RECORD, and all before it, have
+     *  been written and forced to disk, doing so myself, along with all
+     *  other pending records, unless another thread already is.  Throws
+     *  DBException if they cannot be written. */
+    void sync(long record) {
+        byte[] batch;
+        long last;
+        synchronized (this) {
+            awaitFlush(record);
+            if (_flushed >= record) {
+                return;
+            }
+            _flushing = true;
+            batch = _pending.toByteArray();
+            _pending.reset();
+            last = _appended;
+        }
+        DBException failure = null;
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(batch);
+            while (buf.hasRemaining()) {
+                _channel.write(buf);
+            }
+            _channel.force(false);
+        } catch (IOException e) {
+            failure = error("trouble writing to log %s", _file);
+        }
+        synchronized (this) {
+            _flushing = false;
+            if (failure == null) {
+                _flushed = last;
+            } else {
+                _failure = failure;
+            }
+            notifyAll();
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /** Wait, holding my lock, until no other thread is writing records,
+     *  or until the record numbered RECORD has been written.  Throws the
+     *  DBException that ended writing, if any, unless RECORD was written
+     *  before it. */
+    private void awaitFlush(long record) {
+        boolean interrupted = false;
+        while (_flushing && _flushed < record) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (_flushed < record && _failure != null) {
+            throw _failure;
+        }
+    }
+
+    /** Write all records appended so far and force them to disk. */
+    void flush() {
+        long last;
+        synchronized (this) {
+            last = _appended;
+        }
+        sync(last);
+    }
+
+    /** Return the number of bytes in my file, including pending
+     *  records. */
+    synchronized long size() {
+        try {
+            return _channel.size() + _pending.size();
+        } catch (IOException e) {
+            throw error("trouble reading log %s", _file);
+        }
+    }
+
+    /** Discard all my records, once their effects are durable
+     *  elsewhere. */
+    synchronized void clear() {
+        awaitFlush(Long.MAX_VALUE);
+        try {
+            _pending.reset();
+            _flushed = _appended;
+            _channel.truncate(0);
+            _channel.force(false);
+        } catch (IOException e) {
+            throw error("trouble truncating log %s", _file);
+        }
+    }
+
+    /** Write any pending records and close my file. */
+    void close() {
+        flush();
+        try {
+            _channel.close();
+        } catch (IOException e) {
+            /* Ignore IOException */
+        }
+    }
+
+    /** Write RECORDS, each a sequence of strings, as a new log in FILE,
+     *  replacing it atomically, so that a reader sees either all of
+     *  them or the previous contents of FILE.  The records are written
+     *  and forced to a temporary file, which then replaces FILE. */
+    static void writeAll(Path file, Iterable<String[]> records) {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            for (String[] fields : records) {
+                encode(fields, out);
+            }
+            try (FileChannel channel =
+                 FileChannel.open(temp, CREATE, WRITE, TRUNCATE_EXISTING)) {
+                ByteBuffer buf = ByteBuffer.wrap(bytes.toByteArray());
+                while (buf.hasRemaining()) {
+                    channel.write(buf);
+                }
+                channel.force(true);
+            }
+            try {
+                Files.move(temp, file, ATOMIC_MOVE, REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, REPLACE_EXISTING);
+            }
+            forceDirectory(file.toAbsolutePath().getParent());
+        } catch (IOException e) {
+            throw error("trouble writing %s", file);
+        }
+    }
+
+    /** Force the entries of DIRECTORY, such as a file just renamed into
+     *  it, to disk, where the system allows it. */
+    private static void forceDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            /* Not all systems can open a directory; ignore. */
+        }
+    }
+
+    /** Pass each of the valid records in FILE, if it exists, to
+     *  ACTION. */
+    static void readAll(Path file, Consumer<String[]> action) {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+            read(channel, action);
+        } catch (IOException e) {
+            throw error("trouble reading %s", file);
+        }
+    }
+
+    /** The file holding my records. */
+    private final Path _file;
+    /** Channel for reading and appending to _file. */
+    private final FileChannel _channel;
+    /** Records not yet being written to _file. */
+    private final ByteArrayOutputStream _pending =
+        new ByteArrayOutputStream();
+    /** Number of records appended so far. */
+    private long _appended;
+    /** Number of the last record known to be durable. */
+    private long _flushed;
+    /** True iff some thread is writing records to _file. */
+    private boolean _flushing;
+    /** The error from the last failed write, if any, after which no
+     *  more records may be appended. */
+    private DBException _failure;
+}
@@ -1,6 +1,7 @@
 package db61b;
 
-import java.util.Scanner;
+import java.io.InputStreamReader;
+import java.io.Reader;
 
 /** The main program for db61b.
  *  @author P. N. Hilfinger
@@ -8,29 +9,97 @@ import java.util.Scanner;
 public class Main {
 
     /** Version designation for this program. */
-    private static final String VERSION = "2.0";
+    static final String VERSION = "2.0";
 
     /** Starting with an empty database, read and execute commands from
      *  System.in until receiving a 'quit' ('exit') command or until
-     *  reaching the end of input. */
-    public static void main(String[] unused) {
+     *  reaching the end of input.  The options in ARGS are --stats,
+     *  which reports the size and speed of each load and
+     *  store, --log DIR, which starts instead with the database kept
+     *  in directory DIR and keeps all changes to it durably there, and
+     *  --port N, which serves the database instead to any number of
+     *  clients connecting to port N of the local host (see Server),
+     *  --memory MB, which keeps the tables loaded from files within about
+     *  MB megabytes, reading them again as needed, --cache MB, which
+     *  keeps the results of selects, within about MB megabytes, to be
+     *  reused while their tables are unchanged, and --parallel, which
+     *  scans large tables in selects on all available processors. */
+    public static void main(String[] args) {
+        boolean stats, parallel;
+        String directory;
+        int port;
+        long memory, cache;
+        stats = false;
+        parallel = false;
+        directory = null;
+        port = -1;
+        memory = -1;
+        cache = -1;
+        try {
+            for (int i = 0; i < args.length; i += 1) {
+                if (args[i].equals("--stats")) {
+                    stats = true;
+                } else if (args[i].equals("--parallel")) {
+                    parallel = true;
+                } else if (args[i].equals("--log") && i + 1 < args.length) {
+                    i += 1;
+                    directory = args[i];
+                } else if (args[i].equals("--port") && i + 1 < args.length) {
+                    i += 1;
+                    port = Integer.parseInt(args[i]);
+                } else if (args[i].equals("--memory")
+                           && i + 1 < args.length) {
+                    i += 1;
+                    memory = Long.parseLong(args[i]);
+                } else if (args[i].equals("--cache") && i + 1 < args.length) {
+                    i += 1;
+                    cache = Long.parseLong(args[i]);
+                } else {
+                    throw new IllegalArgumentException(args[i]);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Usage: java db61b.Main [--stats] "
+                               + "[--log DIR] [--port N] [--memory MB] "
+                               + "[--cache MB] [--parallel]");
+            System.exit(1);
+        }
+
         System.out.printf("DB61B System Adam Shi.  Version %s.%n", VERSION);
 
-        Scanner input = new Scanner(System.in);
+        Reader input = new InputStreamReader(System.in);
+        Database database = new Database();
+        if (memory >= 0) {
+            database.setMemoryBudget(memory << 20);
+        }
+        if (cache >= 0) {
+            database.setResultBudget(cache << 20);
+        }
+        database.setParallel(parallel);
         CommandInterpreter interpreter =
-            new CommandInterpreter(input, System.out);
+            new CommandInterpreter(input, System.out, System.out, database);
+        interpreter.setStats(stats);
+        if (directory != null) {
+            try {
+                interpreter.open(directory);
+            } catch (DBException e) {
+                System.out.printf("Error: %s%n", e.getMessage());
+                System.exit(1);
+            }
+        }
 
-        while (true) {
+        if (port >= 0) {
+            Runtime.getRuntime().addShutdownHook(new Thread(database::close));
             try {
-                if (!interpreter.statement()) {
-                    break;
-                }
+                new Server(database, port, stats).run();
             } catch (DBException e) {
                 System.out.printf("Error: %s%n", e.getMessage());
-                interpreter.skipCommand();
+                System.exit(1);
             }
+        } else {
+            interpreter.run();
         }
+        interpreter.close();
     }
 
 }
-
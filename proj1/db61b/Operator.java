@@ -0,0 +1,1594 @@
+package db61b;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import static db61b.Utils.*;
+
+/** One stage of the pipeline that evaluates a select.  An Operator
+ *  produces a stream of tuples of ints on demand, one at a time, pulling
+ *  from the Operators below it only as much as it needs, so that no
+ *  intermediate result is ever assembled in full.
+ *
+ *  The stages below a Project work on tuples of row numbers, one for
+ *  each of the tables of the select (the same numbering of tables as
+ *  Column uses), and all share the array that holds the current tuple:
+ *  a Scan fills in one row number, a HashJoin fills in those of the
+ *  tables on one side, and so on.  A Project turns these into tuples of
+ *  value codes, which is the first point at which values are touched.
+ *  @author Adam Shi
+ */
+abstract class Operator {
+
+    /** An Operator whose current tuple is held in TUPLE. */
+    Operator(int[] tuple) {
+        _tuple = tuple;
+    }
+
+    /** Advance to my next tuple, returning false if there is none.
+     *  Counts the tuples produced and, once time() has been called,
+     *  the time taken to produce them. */
+    final boolean next() {
+        boolean more;
+        if (_timed) {
+            long start = System.nanoTime();
+            more = advance();
+            _nanos += System.nanoTime() - start;
+        } else {
+            more = advance();
+        }
+        if (more) {
+            _count += 1;
+        }
+        return more;
+    }
+
+    /** Advance to my next tuple, returning false if there is none.  This
+     *  is next() without the accounting. */
+    abstract boolean advance();
+
+    /** Return a one-line description of what I do. */
+    abstract String describe();
+
+    /** Return the Operators from which I take my tuples. */
+    abstract Operator[] inputs();
+
+    /** Have me and the Operators below me record the time spent
+     *  producing tuples. */
+    void time() {
+        _timed = true;
+        for (Operator input : inputs()) {
+            input.time();
+        }
+    }
+
+    /** Print on the standard output a description of me and, further
+     *  indented, the Operators below me, each line starting with INDENT
+     *  and giving the estimated and actual number of tuples produced and,
+     *  if timed, the time taken, which includes that of the Operators
+     *  below. */
+    void explain(String indent) {
+        explain(indent, System.out);
+    }
+
+    /** Print my description as for explain(INDENT), but on OUT. */
+    void explain(String indent, PrintStream out) {
+        out.printf("%s%s  (estimated %d, actual %d rows%s)%n",
+                   indent, describe(), estimate(), _count,
+                   _timed ? format(", %.3f ms", _nanos / 1e6) : "");
+        for (Operator input : inputs()) {
+            input.explain(indent + "  ", out);
+        }
+    }
+
+    /** Release whatever I and the Operators below me hold outside
+     *  memory, such as temporary files, after which I produce no more
+     *  tuples.  Whoever runs a pipeline closes it once done with it,
+     *  whether or not it was run to the end. */
+    void close() {
+        for (Operator input : inputs()) {
+            input.close();
+        }
+    }
+
+    /** Return the array holding my current tuple, which is valid until
+     *  the next call of next(). */
+    int[] tuple() {
+        return _tuple;
+    }
+
+    /** Return the number of tuples I have produced so far. */
+    long count() {
+        return _count;
+    }
+
+    /** Return an estimate of the number of tuples I will produce. */
+    abstract long estimate();
+
+    /** Return the titles of columns in increasing order of whose values
+     *  my tuples are known to come, most significant first.  By default,
+     *  nothing is known. */
+    List<String> ordering() {
+        return Collections.emptyList();
+    }
+
+    /** Add all my remaining tuples, which must be value codes in the
+     *  dictionary of TABLE, to TABLE. */
+    void addTo(Table table) {
+        while (next()) {
+            table.addCodes(_tuple);
+        }
+    }
+
+    /** Print all my remaining tuples, which must be value codes in
+     *  DICTIONARY, on the standard output in the format of Table.print,
+     *  returning the number printed. */
+    int print(ValueDictionary dictionary) {
+        return print(dictionary, System.out);
+    }
+
+    /** Print all my remaining tuples as for print(DICTIONARY), but on
+     *  OUT, and then close me. */
+    int print(ValueDictionary dictionary, PrintStream out) {
+        StringBuilder line = new StringBuilder();
+        int count;
+        try {
+            for (count = 0; next(); count += 1) {
+                line.setLength(0);
+                line.append("  ");
+                for (int code : _tuple) {
+                    line.append(dictionary.get(code)).append(' ');
+                }
+                out.println(line);
+            }
+        } finally {
+            close();
+        }
+        return count;
+    }
+
+    /** Produces row numbers of one table. */
+    static class Scan extends Operator {
+        /** Produces, in TUPLE[WHICH], the numbers of all the rows of
+         *  TABLE or, if ROWS is not null, the numbers in ROWS.  I am
+         *  described as DESCRIPTION. */
+        Scan(int[] tuple, int which, Table table, IntList rows,
+             String description) {
+            super(tuple);
+            _which = which;
+            _table = table;
+            _rows = rows;
+            _size = rows == null ? table.size() : rows.size();
+            _description = description;
+        }
+
+        @Override
+        String describe() {
+            return _description;
+        }
+
+        @Override
+        Operator[] inputs() {
+            return new Operator[0];
+        }
+
+        @Override
+        boolean advance() {
+            if (_next == _size) {
+                return false;
+            }
+            _tuple[_which] = _rows == null ? _next : _rows.get(_next);
+            _next += 1;
+            return true;
+        }
+
+        @Override
+        long estimate() {
+            return _size;
+        }
+
+        /** My rows come in order of those of my table, if I produce all
+         *  of them; those found by an index come in order of its key. */
+        @Override
+        List<String> ordering() {
+            return _rows == null ? _table.sortedBy()
+                : Collections.<String>emptyList();
+        }
+
+        /** Return the Kth of the row numbers I produce, where 0 <= K <
+         *  estimate(). */
+        int row(int k) {
+            return _rows == null ? k : _rows.get(k);
+        }
+
+        /** Position of my table's row numbers in my tuple. */
+        private final int _which;
+        /** The table whose rows I produce. */
+        private final Table _table;
+        /** The row numbers to produce, or null for all rows. */
+        private final IntList _rows;
+        /** Number of rows to produce. */
+        private final int _size;
+        /** Index of the next row to produce. */
+        private int _next;
+        /** Description of me. */
+        private final String _description;
+    }
+
+    /** Passes on the tuples of another Operator that satisfy a list of
+     *  Conditions. */
+    static class Filter extends Operator {
+        /** Produces the tuples of INPUT, which are numbers of rows of the
+         *  respective TABLES, that satisfy CONDITIONS, which are tested in
+         *  the order Condition.order chooses. */
+        Filter(Operator input, Table[] tables, List<Condition> conditions) {
+            super(input.tuple());
+            _input = input;
+            _tables = tables;
+            _conditions = new ArrayList<Condition>(conditions);
+            Condition.order(_conditions, tables);
+            double fraction = 1;
+            for (Condition cond : conditions) {
+                fraction *= cond.selectivity(tables);
+            }
+            _estimate = (long) Math.ceil(input.estimate() * fraction);
+        }
+
+        @Override
+        String describe() {
+            StringBuilder result = new StringBuilder("Filter ");
+            for (int i = 0; i < _conditions.size(); i += 1) {
+                result.append(i == 0 ? "" : " and ")
+                    .append(_conditions.get(i));
+            }
+            return result.toString();
+        }
+
+        @Override
+        Operator[] inputs() {
+            return new Operator[] { _input };
+        }
+
+        @Override
+        boolean advance() {
+            while (_input.next()) {
+                if (Condition.test(_conditions, _tables, _tuple)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        long estimate() {
+            return _estimate;
+        }
+
+        @Override
+        List<String> ordering() {
+            return _input.ordering();
+        }
+
+        /** Source of my tuples. */
+        private final Operator _input;
+        /** Estimated number of tuples I produce. */
+        private final long _estimate;
+        /** Tables whose rows my tuples number. */
+        private final Table[] _tables;
+        /** Conditions my tuples must satisfy. */
+        private final List<Condition> _conditions;
+    }
+
+    /** Joins the tuples of two Operators that agree on a list of common
+     *  columns.  The tuples of the input expected to be smaller are
+     *  collected into a hash table keyed on the codes of the common
+     *  columns, and the other input is then streamed past it, so that the
+     *  join takes time linear in the sizes of the inputs and of the
+     *  result, and only the smaller input is held in memory.  Tuples
+     *  come out in the order of the streamed input. */
+    static class HashJoin extends Operator {
+        /** Produces the tuples that combine a tuple of LEFT, which fills in
+         *  the row numbers of the TABLES at the positions LEFTTABLES, with
+         *  one of RIGHT, which fills in those at RIGHTTABLES, that agree
+         *  on the columns named KEYS.  A key is taken from the first table
+         *  on each side that has it.  With no keys, this is the cartesian
+         *  product.  Values are compared in the dictionary of TABLES[0],
+         *  as values of the common type of the two columns of each key
+         *  (see Type.common), as Condition compares them. */
+        HashJoin(Table[] tables, Operator left, int[] leftTables,
+                 Operator right, int[] rightTables, List<String> keys) {
+            super(left.tuple());
+            if (left.tuple() != right.tuple()) {
+                throw error("joined operators must share a tuple");
+            }
+            boolean buildLeft = left.estimate() <= right.estimate();
+            _build = buildLeft ? left : right;
+            _probe = buildLeft ? right : left;
+            _buildTables = buildLeft ? leftTables : rightTables;
+            int[] probeTables = buildLeft ? rightTables : leftTables;
+            _buildLeft = buildLeft;
+            _keyNames = keys;
+
+            _buildKey = new int[2][keys.size()];
+            _probeKey = new int[2][keys.size()];
+            double distinct = 1;
+            for (int k = 0; k < keys.size(); k += 1) {
+                locate(tables, _buildTables, keys.get(k), _buildKey, k);
+                locate(tables, probeTables, keys.get(k), _probeKey, k);
+                distinct = Math.max(distinct,
+                                    Math.max(distinct(tables, _buildKey, k),
+                                             distinct(tables, _probeKey,
+                                                      k)));
+            }
+            _estimate = (long) Math.ceil((double) left.estimate()
+                                         * right.estimate() / distinct);
+            _tables = tables;
+            _key = new int[keys.size()];
+            _keyTypes = new Type[keys.size()];
+            for (int k = 0; k < _keyTypes.length; k += 1) {
+                _keyTypes[k] =
+                    Type.common(type(tables, _buildKey, k),
+                                type(tables, _probeKey, k));
+            }
+        }
+
+        /** Return the type of the Kth key column described by KEY (see
+         *  locate) of TABLES. */
+        private static Type type(Table[] tables, int[][] key, int k) {
+            return tables[key[0][k]].getType(key[1][k]);
+        }
+
+        /** Return the number of distinct values in the Kth key column
+         *  described by KEY (see locate) of TABLES. */
+        private static int distinct(Table[] tables, int[][] key, int k) {
+            return tables[key[0][k]].statistics(key[1][k]).distinct();
+        }
+
+        @Override
+        String describe() {
+            String side = _buildLeft ? "left" : "right";
+            if (_keyNames.isEmpty()) {
+                return "Cartesian product, holding the " + side + " input";
+            }
+            return "Hash join on (" + String.join(", ", _keyNames)
+                + "), hashing the " + side + " input";
+        }
+
+        @Override
+        Operator[] inputs() {
+            return _buildLeft ? new Operator[] { _build, _probe }
+                : new Operator[] { _probe, _build };
+        }
+
+        /** Set TABLEANDCOLUMN[0][K] and TABLEANDCOLUMN[1][K] to the
+         *  position and column number of the first of the TABLES at the
+         *  positions POSITIONS that has a column named NAME. */
+        private static void locate(Table[] tables, int[] positions,
+                                   String name, int[][] tableAndColumn,
+                                   int k) {
+            for (int p : positions) {
+                int col = tables[p].findColumn(name);
+                if (col != -1) {
+                    tableAndColumn[0][k] = p;
+                    tableAndColumn[1][k] = col;
+                    return;
+                }
+            }
+            throw error("unknown column: %s", name);
+        }
+
+        /** Return an array mapping the codes of TABLE to codes in DICT, or
+         *  null if TABLE's dictionary is DICT. */
+        private static int[] recoding(Table table, ValueDictionary dict) {
+            return table.dictionary() == dict ? null
+                : table.dictionary().codesIn(dict);
+        }
+
+        /** Set _key to the codes, in the dictionary of _tables[0], of the
+         *  representatives of the columns KEY of the current tuple,
+         *  translated through RECODE. */
+        private void keyCodes(int[][] key, int[][] recode) {
+            ValueDictionary dict = _tables[0].dictionary();
+            for (int k = 0; k < _key.length; k += 1) {
+                int p = key[0][k];
+                int code = _tables[p].code(_tuple[p], key[1][k]);
+                _key[k] = dict.representative(recode[k] == null ? code
+                                              : recode[k][code],
+                                              _keyTypes[k]);
+            }
+        }
+
+        /** Collect all the tuples of _build into _keys, _first, _next, and
+         *  _built. */
+        private void build() {
+            ValueDictionary dict = _tables[0].dictionary();
+            _buildRecode = new int[_key.length][];
+            _probeRecode = new int[_key.length][];
+            for (int k = 0; k < _key.length; k += 1) {
+                _buildRecode[k] = recoding(_tables[_buildKey[0][k]], dict);
+                _probeRecode[k] = recoding(_tables[_probeKey[0][k]], dict);
+            }
+            _keys = new TupleSet(_key.length);
+            _first = new IntList();
+            _next = new IntList();
+            _built = new IntList();
+            for (int id = 0; _build.next(); id += 1) {
+                keyCodes(_buildKey, _buildRecode);
+                int k = _keys.add(_key);
+                if (k == _first.size()) {
+                    _first.add(-1);
+                }
+                _next.add(_first.get(k));
+                _first.set(k, id);
+                for (int p : _buildTables) {
+                    _built.add(_tuple[p]);
+                }
+            }
+        }
+
+        @Override
+        boolean advance() {
+            if (_keys == null) {
+                build();
+            }
+            while (_match == -1) {
+                if (!_probe.next()) {
+                    return false;
+                }
+                keyCodes(_probeKey, _probeRecode);
+                int k = _keys.find(_key);
+                _match = k == -1 ? -1 : _first.get(k);
+            }
+            int base = _match * _buildTables.length;
+            for (int i = 0; i < _buildTables.length; i += 1) {
+                _tuple[_buildTables[i]] = _built.get(base + i);
+            }
+            _match = _next.get(_match);
+            return true;
+        }
+
+        @Override
+        long estimate() {
+            return _estimate;
+        }
+
+        /** The tables whose rows my tuples number. */
+        private final Table[] _tables;
+        /** The input collected into the hash table, and the input streamed
+         *  past it. */
+        private final Operator _build, _probe;
+        /** True iff _build is my left input. */
+        private final boolean _buildLeft;
+        /** Names of my key columns. */
+        private final List<String> _keyNames;
+        /** The types as which my keys are compared. */
+        private final Type[] _keyTypes;
+        /** Positions of the row numbers that _build fills in. */
+        private final int[] _buildTables;
+        /** Positions (in row [0]) and column numbers (in row [1]) of the
+         *  key columns on each side. */
+        private final int[][] _buildKey, _probeKey;
+        /** For each key column on each side, the map from its table's
+         *  codes to those of _tables[0], or null if they are the same.
+         *  Computed when first needed, since it may add values to the
+         *  dictionary of _tables[0]. */
+        private int[][] _buildRecode, _probeRecode;
+        /** Scratch array for the key of the current tuple. */
+        private final int[] _key;
+        /** Estimated size of my result. */
+        private final long _estimate;
+        /** The distinct keys of the tuples of _build. */
+        private TupleSet _keys;
+        /** For each key in _keys, the number of the last tuple of _build
+         *  with that key, or -1. */
+        private IntList _first;
+        /** For each tuple of _build, the number of the previous tuple with
+         *  the same key, or -1. */
+        private IntList _next;
+        /** The row numbers filled in by each tuple of _build, in order. */
+        private IntList _built;
+        /** The number of the next tuple of _build that matches the current
+         *  tuple of _probe, or -1 if there is none. */
+        private int _match = -1;
+    }
+
+    /** Joins the rows of two tables, produced by two Operators in order
+     *  of the values of their common columns, by merging the two streams.
+     *  Only the rows of the second table that share one key are held at
+     *  any time, and the output comes in order of the key.  Planner uses
+     *  one in place of a HashJoin of two tables whose rows are both
+     *  known to be sorted by their common columns (see Table.sortedBy). */
+    static class MergeJoin extends Operator {
+        /** Produces the pairs of a row of TABLES[LEFTTABLE], from LEFT,
+         *  and a row of TABLES[RIGHTTABLE], from RIGHT, that agree on the
+         *  columns named KEYS.  LEFT and RIGHT must produce rows in
+         *  increasing order of the values of KEYS, most significant
+         *  first. */
+        MergeJoin(Table[] tables, Operator left, int leftTable,
+                  Operator right, int rightTable, List<String> keys) {
+            super(left.tuple());
+            if (left.tuple() != right.tuple()) {
+                throw error("joined operators must share a tuple");
+            }
+            _tables = new Table[] { tables[leftTable], tables[rightTable] };
+            _which = new int[] { leftTable, rightTable };
+            _left = left;
+            _right = right;
+            _keyNames = keys;
+            _leftKey = new int[keys.size()];
+            _rightKey = new int[keys.size()];
+            for (int k = 0; k < _leftKey.length; k += 1) {
+                _leftKey[k] = _tables[0].findColumn(keys.get(k));
+                _rightKey[k] = _tables[1].findColumn(keys.get(k));
+            }
+        }
+
+        @Override
+        String describe() {
+            return "Merge join on (" + String.join(", ", _keyNames) + ")";
+        }
+
+        @Override
+        Operator[] inputs() {
+            return new Operator[] { _left, _right };
+        }
+
+        @Override
+        long estimate() {
+            return Math.max(_left.estimate(), _right.estimate());
+        }
+
+        @Override
+        List<String> ordering() {
+            return _keyNames;
+        }
+
+        @Override
+        boolean advance() {
+            if (_ranks == null) {
+                ValueDictionary dict = _tables[0].dictionary();
+                _ranks = new int[_leftKey.length][];
+                for (int k = 0; k < _ranks.length; k += 1) {
+                    if (dict == _tables[1].dictionary()) {
+                        _ranks[k] =
+                            dict.ranks(_tables[0].getType(_leftKey[k]));
+                    }
+                }
+                _leftRow = _left.next() ? _tuple[_which[0]] : -1;
+                _rightRow = _right.next() ? _tuple[_which[1]] : -1;
+            }
+            while (true) {
+                if (_group.size() > 0) {
+                    if (_member < _group.size()) {
+                        _tuple[_which[0]] = _leftRow;
+                        _tuple[_which[1]] = _group.get(_member);
+                        _member += 1;
+                        return true;
+                    }
+                    int previous = _leftRow;
+                    _leftRow = _left.next() ? _tuple[_which[0]] : -1;
+                    if (_leftRow != -1 && sameKey(0, previous, _leftRow)) {
+                        _member = 0;
+                        continue;
+                    }
+                    _group = new IntList();
+                }
+                if (_leftRow == -1 || _rightRow == -1) {
+                    return false;
+                }
+                int c = compare(_leftRow, _rightRow);
+                if (c < 0) {
+                    _leftRow = _left.next() ? _tuple[_which[0]] : -1;
+                } else if (c > 0) {
+                    _rightRow = _right.next() ? _tuple[_which[1]] : -1;
+                } else {
+                    int first = _rightRow;
+                    do {
+                        _group.add(_rightRow);
+                        _rightRow = _right.next() ? _tuple[_which[1]] : -1;
+                    } while (_rightRow != -1 && sameKey(1, first, _rightRow));
+                    _member = 0;
+                }
+            }
+        }
+
+        /** Return true iff rows ROW1 and ROW2 of _tables[T] have the same
+         *  key. */
+        private boolean sameKey(int t, int row1, int row2) {
+            int[] key = t == 0 ? _leftKey : _rightKey;
+            for (int col : key) {
+                if (_tables[t].code(row1, col) != _tables[t].code(row2, col)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** Return a negative, zero, or positive value as the key of row
+         *  LEFTROW of _tables[0] is less than, equal to, or greater than
+         *  that of row RIGHTROW of _tables[1], comparing values in the
+         *  order of their type (the same for both tables), so that equal
+         *  numbers match. */
+        private int compare(int leftRow, int rightRow) {
+            ValueDictionary dict0 = _tables[0].dictionary(),
+                dict1 = _tables[1].dictionary();
+            for (int k = 0; k < _leftKey.length; k += 1) {
+                int code1 = _tables[0].code(leftRow, _leftKey[k]),
+                    code2 = _tables[1].code(rightRow, _rightKey[k]);
+                int c;
+                if (_ranks[k] != null) {
+                    c = Integer.compare(_ranks[k][code1], _ranks[k][code2]);
+                } else {
+                    c = _tables[0].getType(_leftKey[k])
+                        .compare(dict0, code1, dict1, code2);
+                }
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return 0;
+        }
+
+        /** The two tables joined. */
+        private final Table[] _tables;
+        /** The positions of _tables[0] and _tables[1] in my tuple. */
+        private final int[] _which;
+        /** The sources of the rows of _tables[0] and _tables[1]. */
+        private final Operator _left, _right;
+        /** Names of my key columns. */
+        private final List<String> _keyNames;
+        /** Numbers of my key columns in _tables[0] and _tables[1]. */
+        private final int[] _leftKey, _rightKey;
+        /** For each key, the ranks of the codes of the tables' shared
+         *  dictionary in the order of the key's type, or null if they have
+         *  different ones; null before the first tuple. */
+        private int[][] _ranks;
+        /** The current rows from _left and _right, or -1 if exhausted. */
+        private int _leftRow, _rightRow;
+        /** The rows from _right whose key equals that of _leftRow, if it
+         *  matches any. */
+        private IntList _group = new IntList();
+        /** The index in _group of the next row to pair with _leftRow. */
+        private int _member;
+    }
+
+    /** The last stage of a select: produces tuples of the codes of values
+     *  in a dictionary, which are the rows of its result. */
+    abstract static class Output extends Operator {
+        /** An Output whose tuples are codes in DICTIONARY of the values of
+         *  columns named TITLES, of the respective TYPES. */
+        Output(List<String> titles, List<Type> types,
+               ValueDictionary dictionary) {
+            super(new int[titles.size()]);
+            _titles = titles;
+            _types = types;
+            _dict = dictionary;
+        }
+
+        /** Record that my tuples come in increasing order of the values
+         *  of my columns titled ORDERING, most significant first. */
+        void setOrdering(List<String> ordering) {
+            _ordering = ordering;
+        }
+
+        @Override
+        List<String> ordering() {
+            return _ordering;
+        }
+
+        /** Return the titles of the columns of my tuples. */
+        List<String> titles() {
+            return _titles;
+        }
+
+        /** Return the types of the columns of my tuples. */
+        List<Type> types() {
+            return _types;
+        }
+
+        /** Return the dictionary of the codes in my tuples. */
+        ValueDictionary dictionary() {
+            return _dict;
+        }
+
+        /** Titles of my columns. */
+        private final List<String> _titles;
+        /** Types of my columns. */
+        private final List<Type> _types;
+        /** Titles of the columns by which my tuples are ordered. */
+        private List<String> _ordering = Collections.emptyList();
+        /** Dictionary of my codes. */
+        private final ValueDictionary _dict;
+    }
+
+    /** Turns tuples of row numbers into tuples of the codes of selected
+     *  values from those rows. */
+    static class Project extends Output {
+        /** Produces, for each tuple of INPUT, which are numbers of rows of
+         *  the respective TABLES, the codes in DICTIONARY of the values
+         *  of the columns COLUMNS, which are named TITLES. */
+        Project(Operator input, Table[] tables, Column[] columns,
+                List<String> titles, ValueDictionary dictionary) {
+            super(titles, types(columns), dictionary);
+            _input = input;
+            _rows = input.tuple();
+            _tables = tables;
+            _which = new int[columns.length];
+            _columns = new int[columns.length];
+            _recode = new int[columns.length][];
+            int[][] recodes = new int[tables.length][];
+            for (int c = 0; c < columns.length; c += 1) {
+                int t = columns[c].getTable();
+                _which[c] = t;
+                _columns[c] = columns[c].getColumn();
+                if (tables[t].dictionary() != dictionary) {
+                    if (recodes[t] == null) {
+                        recodes[t] =
+                            tables[t].dictionary().codesIn(dictionary);
+                    }
+                    _recode[c] = recodes[t];
+                }
+            }
+        }
+
+        @Override
+        String describe() {
+            return "Project (" + String.join(", ", titles()) + ")";
+        }
+
+        @Override
+        Operator[] inputs() {
+            return new Operator[] { _input };
+        }
+
+        @Override
+        boolean advance() {
+            if (!_input.next()) {
+                return false;
+            }
+            for (int c = 0; c < _tuple.length; c += 1) {
+                int t = _which[c];
+                int code = _tables[t].code(_rows[t], _columns[c]);
+                _tuple[c] = _recode[c] == null ? code : _recode[c][code];
+            }
+            return true;
+        }
+
+        @Override
+        long estimate() {
+            return _input.estimate();
+        }
+
+        /** Return the types of COLUMNS. */
+        private static List<Type> types(Column[] columns) {
+            ArrayList<Type> types = new ArrayList<Type>();
+            for (Column column : columns) {
+                types.add(column.getType());
+            }
+            return types;
+        }
+
+        /** Source of my row numbers. */
+        private final Operator _input;
+        /** The current tuple of _input. */
+        private final int[] _rows;
+        /** The tables whose rows _rows numbers. */
+        private final Table[] _tables;
+        /** For each of my columns, the position in _rows of the number of
+         *  the row from which it is taken. */
+        private final int[] _which;
+        /** For each of my columns, the number of the column of its table
+         *  from which it is taken. */
+        private final int[] _columns;
+        /** For each of my columns, the map from the codes of its table to
+         *  those of my dictionary, or null if they are the same. */
+        private final int[][] _recode;
+    }
+
+    /** Sorts the tuples of another Operator, which are numbers of rows of
+     *  tables, on the values of a list of columns of those rows, each in
+     *  the order of its type.  Values are compared through the ranks of
+     *  their codes (see ValueDictionary.ranks), which are looked up once
+     *  per tuple, so that sorting compares only ints.  Tuples are
+     *  collected into runs of bounded size, each sorted in memory.  If
+     *  there is more than one run, each is written to a temporary file as
+     *  it fills, and the files are then merged, so that the memory used
+     *  is bounded by the size of a run rather than by that of the input.
+     *  The sort is stable. */
+    static class Sort extends Operator {
+        /** Produces the tuples of INPUT, which are numbers of rows of the
+         *  respective TABLES, in order of the values of KEYS, most
+         *  significant first. */
+        Sort(Operator input, Table[] tables, Column[] keys) {
+            this(input, tables, keys, RUN_SIZE);
+        }
+
+        /** As for Sort(INPUT, TABLES, KEYS), but holding at most about
+         *  RUNSIZE ints in memory at once. */
+        Sort(Operator input, Table[] tables, Column[] keys, int runSize) {
+            super(input.tuple());
+            _input = input;
+            _tables = tables;
+            _keys = keys;
+            _width = _tuple.length + keys.length;
+            _runTuples = Math.max(2, runSize / _width);
+            _data = new int[Math.min(_runTuples, INITIAL_RUN) * _width];
+        }
+
+        @Override
+        String describe() {
+            StringBuilder result = new StringBuilder("Sort on (");
+            for (int k = 0; k < _keys.length; k += 1) {
+                result.append(k == 0 ? "" : ", ").append(_keys[k].getName());
+            }
+            result.append(")");
+            if (_files.size() > 1) {
+                result.append(", merging ").append(_files.size())
+                    .append(" runs");
+            }
+            return result.toString();
+        }
+
+        @Override
+        Operator[] inputs() {
+            return new Operator[] { _input };
+        }
+
+        @Override
+        long estimate() {
+            return _input.estimate();
+        }
+
+        /** Also deletes my runs, closing those still being merged. */
+        @Override
+        void close() {
+            discardRuns();
+            super.close();
+        }
+
+        @Override
+        boolean advance() {
+            if (_order == null) {
+                try {
+                    sortInput();
+                } catch (IOException e) {
+                    discardRuns();
+                    throw error("trouble sorting: %s", e.getMessage());
+                }
+            }
+            if (_merge == null) {
+                if (_next == _size) {
+                    return false;
+                }
+                System.arraycopy(_data, _order[_next] * _width, _tuple, 0,
+                                 _tuple.length);
+                _next += 1;
+                return true;
+            }
+            Run run = _merge.poll();
+            if (run == null) {
+                return false;
+            }
+            System.arraycopy(run._record, 0, _tuple, 0, _tuple.length);
+            try {
+                if (run.read()) {
+                    _merge.add(run);
+                } else {
+                    run.close();
+                }
+            } catch (IOException e) {
+                discardRuns();
+                throw error("trouble sorting: %s", e.getMessage());
+            }
+            return true;
+        }
+
+        /** Collect all the tuples of _input into sorted runs, leaving the
+         *  only run in _data and _order or, if there is more than one,
+         *  setting up _merge to merge them. */
+        private void sortInput() throws IOException {
+            int[][] ranks = new int[_keys.length][];
+            for (int k = 0; k < _keys.length; k += 1) {
+                ranks[k] = _tables[_keys[k].getTable()].dictionary()
+                    .ranks(_keys[k].getType());
+            }
+            int n = _tuple.length;
+            while (_input.next()) {
+                if (_size == _runTuples) {
+                    spill();
+                }
+                if ((_size + 1) * _width > _data.length) {
+                    _data = Arrays.copyOf(_data, 2 * _data.length);
+                }
+                int base = _size * _width;
+                System.arraycopy(_tuple, 0, _data, base, n);
+                for (int k = 0; k < _keys.length; k += 1) {
+                    int t = _keys[k].getTable();
+                    _data[base + n + k] =
+                        ranks[k][_tables[t].code(_tuple[t],
+                                                 _keys[k].getColumn())];
+                }
+                _size += 1;
+            }
+            if (_files.isEmpty()) {
+                _order = sortedOrder();
+                return;
+            }
+            spill();
+            _data = null;
+            _order = new int[0];
+            _merge = new PriorityQueue<Run>();
+            for (int r = 0; r < _files.size(); r += 1) {
+                Run run = new Run(r);
+                if (run.read()) {
+                    _merge.add(run);
+                } else {
+                    run.close();
+                }
+            }
+        }
+
+        /** Return the numbers of the _size tuples in _data in sorted
+         *  order. */
+        private int[] sortedOrder() {
+            int[] order = new int[_size], scratch = new int[_size];
+            for (int i = 0; i < _size; i += 1) {
+                order[i] = i;
+            }
+            for (int len = 1; len < _size; len *= 2) {
+                for (int lo = 0; lo < _size - len; lo += 2 * len) {
+                    int mid = lo + len, hi = Math.min(lo + 2 * len, _size);
+                    int i = lo, j = mid;
+                    for (int k = lo; k < hi; k += 1) {
+                        if (j == hi || i < mid
+                            && compare(_data, order[i] * _width,
+                                       _data, order[j] * _width) <= 0) {
+                            scratch[k] = order[i];
+                            i += 1;
+                        } else {
+                            scratch[k] = order[j];
+                            j += 1;
+                        }
+                    }
+                    System.arraycopy(scratch, lo, order, lo, hi - lo);
+                }
+            }
+            return order;
+        }
+
+        /** Compare the keys of the records starting at positions BASE1 of
+         *  DATA1 and BASE2 of DATA2, returning a negative, zero, or
+         *  positive value as the first sorts before, with, or after the
+         *  second. */
+        private int compare(int[] data1, int base1, int[] data2, int base2) {
+            int n = _tuple.length;
+            for (int k = 0; k < _keys.length; k += 1) {
+                int r1 = data1[base1 + n + k], r2 = data2[base2 + n + k];
+                if (r1 != r2) {
+                    return r1 < r2 ? -1 : 1;
+                }
+            }
+            return 0;
+        }
+
+        /** Write the tuples in _data, in sorted order, to a new temporary
+         *  file, and empty _data. */
+        private void spill() throws IOException {
+            int[] order = sortedOrder();
+            Path file = Files.createTempFile("db61b", ".run");
+            _files.add(file);
+            _sizes.add(_size);
+            try (DataOutputStream out =
+                 new DataOutputStream(new BufferedOutputStream(
+                     Files.newOutputStream(file), IO_BUFFER))) {
+                for (int i = 0; i < _size; i += 1) {
+                    int base = order[i] * _width;
+                    for (int k = 0; k < _width; k += 1) {
+                        out.writeInt(_data[base + k]);
+                    }
+                }
+            }
+            _size = 0;
+        }
+
+        /** Close all my runs and delete all my temporary files, which is
+         *  done when the merge fails or is abandoned. */
+        private void discardRuns() {
+            for (Run run : _runs) {
+                try {
+                    run._in.close();
+                } catch (IOException e) {
+                    /* Ignore IOException */
+                }
+            }
+            _runs.clear();
+            _merge = null;
+            for (Path file : _files) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    /* Ignore IOException */
+                }
+            }
+        }
+
+        /** One of the sorted runs being merged. */
+        private class Run implements Comparable<Run> {
+            /** The run numbered NUMBER. */
+            Run(int number) throws IOException {
+                _number = number;
+                _remaining = _sizes.get(number);
+                _in = new DataInputStream(new BufferedInputStream(
+                    Files.newInputStream(_files.get(number)), IO_BUFFER));
+                _runs.add(this);
+            }
+
+            /** Read my next record into _record, returning false if there
+             *  is none. */
+            boolean read() throws IOException {
+                if (_remaining == 0) {
+                    return false;
+                }
+                for (int k = 0; k < _width; k += 1) {
+                    _record[k] = _in.readInt();
+                }
+                _remaining -= 1;
+                return true;
+            }
+
+            /** Close and delete my file. */
+            void close() throws IOException {
+                _in.close();
+                _runs.remove(this);
+                Files.deleteIfExists(_files.get(_number));
+            }
+
+            @Override
+            public int compareTo(Run other) {
+                int c = compare(_record, 0, other._record, 0);
+                return c != 0 ? c : _number - other._number;
+            }
+
+            /** My position among the runs, which breaks ties. */
+            private final int _number;
+            /** My current record: a tuple followed by its key ranks. */
+            private final int[] _record = new int[_width];
+            /** Source of my records. */
+            private final DataInputStream _in;
+            /** Number of records not yet read. */
+            private int _remaining;
+        }
+
+        /** Source of my tuples. */
+        private final Operator _input;
+        /** The tables whose rows my tuples number. */
+        private final Table[] _tables;
+        /** The columns I sort on. */
+        private final Column[] _keys;
+        /** Number of ints in a record: a tuple followed by its key
+         *  ranks. */
+        private final int _width;
+        /** Maximum number of tuples in a run. */
+        private final int _runTuples;
+        /** Records of the current run. */
+        private int[] _data;
+        /** Number of records in _data. */
+        private int _size;
+        /** Order of the records in _data, once sorted (empty if there
+         *  are several runs). */
+        private int[] _order;
+        /** Index in _order of the next record to produce. */
+        private int _next;
+        /** Files holding spilled runs, and their numbers of records. */
+        private final ArrayList<Path> _files = new ArrayList<Path>();
+        /** Numbers of records in _files. */
+        private final IntList _sizes = new IntList();
+        /** The runs being merged, ordered by their current records, or null
+         *  if there was only one run. */
+        private PriorityQueue<Run> _merge;
+        /** The runs whose files are open. */
+        private final ArrayList<Run> _runs = new ArrayList<Run>();
+    }
+
+    /** Passes on each distinct tuple of another Operator once. */
+    static class Distinct extends Operator {
+        /** Produces the distinct tuples of INPUT, in order of first
+         *  appearance, comparing their values as values of the types of
+         *  INPUT's columns. */
+        Distinct(Output input) {
+            super(input.tuple());
+            _input = input;
+            _seen = new TupleSet(_tuple.length, input.dictionary(),
+                                 input.types());
+        }
+
+        @Override
+        String describe() {
+            return "Distinct";
+        }
+
+        @Override
+        Operator[] inputs() {
+            return new Operator[] { _input };
+        }
+
+        @Override
+        boolean advance() {
+            while (_input.next()) {
+                int size = _seen.size();
+                if (_seen.add(_tuple) == size) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        long estimate() {
+            return _input.estimate();
+        }
+
+        /** Source of my tuples. */
+        private final Operator _input;
+        /** The tuples produced so far. */
+        private final TupleSet _seen;
+    }
+
+    /** Produces the distinct tuples of the codes of selected values from
+     *  the rows of one table that satisfy a list of Conditions, as a
+     *  Distinct over a Project over a Filter over a Scan would, but with
+     *  the work split among the threads of a fork-join pool.  The rows of
+     *  the Scan are divided into consecutive partitions, and for each
+     *  partition a task tests the Conditions (copies of them, since
+     *  Conditions keep state as they are tested) and collects the
+     *  distinct tuples of the rows that pass.  The partitions' sets of
+     *  tuples are then merged in order, so that tuples come out in order
+     *  of first appearance, as from a Distinct.  All of this happens when
+     *  the first tuple is asked for. */
+    static class ParallelSelect extends Output {
+        /** Produces the distinct tuples of the codes, in the dictionary of
+         *  TABLES[0], of the values of COLUMNS, which are named TITLES, of
+         *  those of the rows of TABLES[0] produced by SCAN that satisfy
+         *  CONDITIONS.  TABLES must have only one element. */
+        ParallelSelect(Scan scan, Table[] tables, List<Condition> conditions,
+                       Column[] columns, List<String> titles) {
+            super(titles, Project.types(columns), tables[0].dictionary());
+            _scan = scan;
+            _tables = tables;
+            _conditions = new ArrayList<Condition>(conditions);
+            Condition.order(_conditions, tables);
+            _columns = new int[columns.length];
+            for (int c = 0; c < columns.length; c += 1) {
+                _columns[c] = columns[c].getColumn();
+            }
+            int rows = (int) scan.estimate();
+            _partitions = Math.max(1, Math.min(rows / MIN_PARTITION,
+                                               PARTITIONS_PER_THREAD
+                                               * POOL.getParallelism()));
+            double fraction = 1;
+            for (Condition cond : conditions) {
+                fraction *= cond.selectivity(tables);
+            }
+            _estimate = (long) Math.ceil(rows * fraction);
+        }
+
+        @Override
+        String describe() {
+            StringBuilder result = new StringBuilder("Parallel ");
+            result.append(_scan.describe())
+                .append(" in ").append(_partitions).append(" partitions");
+            for (int i = 0; i < _conditions.size(); i += 1) {
+                result.append(i == 0 ? " where " : " and ")
+                    .append(_conditions.get(i));
+            }
+            return result.append(", projecting (")
+                .append(String.join(", ", titles())).append(")").toString();
+        }
+
+        @Override
+        Operator[] inputs() {
+            return new Operator[0];
+        }
+
+        @Override
+        boolean advance() {
+            if (_result == null) {
+                _result = select();
+            }
+            if (_next == _result.size()) {
+                return false;
+            }
+            for (int c = 0; c < _tuple.length; c += 1) {
+                _tuple[c] = _result.get(_next, c);
+            }
+            _next += 1;
+            return true;
+        }
+
+        @Override
+        long estimate() {
+            return _estimate;
+        }
+
+        /** Return the distinct tuples I produce, in order, computing the
+         *  partitions in parallel. */
+        private TupleSet select() {
+            int rows = (int) _scan.estimate();
+            ArrayList<Callable<TupleSet>> tasks = new ArrayList<>();
+            for (int p = 0; p < _partitions; p += 1) {
+                int start = (int) ((long) rows * p / _partitions),
+                    end = (int) ((long) rows * (p + 1) / _partitions);
+                tasks.add(() -> select(start, end));
+            }
+            TupleSet result = new TupleSet(_tuple.length, dictionary(),
+                                           types());
+            try {
+                for (Future<TupleSet> part : POOL.invokeAll(tasks)) {
+                    TupleSet tuples = part.get();
+                    for (int id = 0; id < tuples.size(); id += 1) {
+                        for (int c = 0; c < _tuple.length; c += 1) {
+                            _tuple[c] = tuples.get(id, c);
+                        }
+                        result.add(_tuple);
+                    }
+                }
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw error("parallel select failed: %s", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw error("parallel select interrupted");
+            }
+            return result;
+        }
+
+        /** Return the distinct tuples selected from the rows numbered by
+         *  the Scan's row numbers START .. END-1, in order of first
+         *  appearance. */
+        private TupleSet select(int start, int end) {
+            ArrayList<Condition> conditions = new ArrayList<>();
+            for (Condition cond : _conditions) {
+                conditions.add(cond.bind(cond.getLiteral()));
+            }
+            Table table = _tables[0];
+            int[] rows = new int[1];
+            int[] tuple = new int[_columns.length];
+            TupleSet result = new TupleSet(tuple.length, dictionary(),
+                                           types());
+            for (int k = start; k < end; k += 1) {
+                rows[0] = _scan.row(k);
+                if (Condition.test(conditions, _tables, rows)) {
+                    for (int c = 0; c < tuple.length; c += 1) {
+                        tuple[c] = table.code(rows[0], _columns[c]);
+                    }
+                    result.add(tuple);
+                }
+            }
+            return result;
+        }
+
+        /** Pool on which the partitions are computed. */
+        private static final ForkJoinPool POOL = ForkJoinPool.commonPool();
+        /** Number of partitions per thread of POOL, so that threads that
+         *  finish early may take up the slack. */
+        private static final int PARTITIONS_PER_THREAD = 4;
+        /** Smallest number of rows in a partition. */
+        private static final int MIN_PARTITION = 1 << 14;
+
+        /** The rows to select from. */
+        private final Scan _scan;
+        /** The table whose rows _scan numbers, alone. */
+        private final Table[] _tables;
+        /** Conditions that the rows selected must satisfy. */
+        private final List<Condition> _conditions;
+        /** The numbers of the columns whose values I produce. */
+        private final int[] _columns;
+        /** Number of partitions into which _scan's rows are divided. */
+        private final int _partitions;
+        /** Estimated number of tuples I produce. */
+        private final long _estimate;
+        /** The tuples I produce, once computed. */
+        private TupleSet _result;
+        /** Number of the next tuple of _result to produce. */
+        private int _next;
+    }
+
+    /** Groups the tuples of another Output by the values of their leading
+     *  columns and produces, for each group, a tuple of values of those
+     *  columns and of aggregates of other columns over the group: count,
+     *  sum, min, max, or avg.  Groups are kept in a hash table with their
+     *  running aggregates, so that only one tuple of input is held at a
+     *  time, and are produced in order of their first appearance in the
+     *  input.  Sums of ints are exact.  My tuples are codes in a
+     *  dictionary of my own, so that the values computed for one select
+     *  are not kept in that of the database for good. */
+    static class Aggregate extends Output {
+        /** Produces a tuple for each distinct combination of the first
+         *  GROUPS codes of the tuples of INPUT.  If FUNCTIONS[i] is null,
+         *  its Ith code is that of the SOURCES[i]th of those first codes.
+         *  Otherwise FUNCTIONS[i] is one of FUNCTIONS, and the Ith code is
+         *  that of its value over the codes at position SOURCES[i] of the
+         *  tuples in the combination; the source of count is ignored.
+         *  TITLES are the titles of the columns produced.  If GROUPS is 0,
+         *  there is exactly one group, even if INPUT is empty. */
+        Aggregate(Output input, int groups, int[] sources, String[] functions,
+                  List<String> titles) {
+            super(titles, types(input, sources, functions),
+                  new ValueDictionary());
+            _input = input;
+            _sources = sources;
+            _groups = new TupleSet(groups, input.dictionary(),
+                                   input.types());
+            _functions = new int[functions.length];
+            _values = new int[functions.length][];
+            _sums = new double[functions.length][];
+            _integerSums = new long[functions.length][];
+            for (int i = 0; i < functions.length; i += 1) {
+                if (functions[i] == null) {
+                    _functions[i] = GROUP;
+                    continue;
+                }
+                _functions[i] = Arrays.asList(FUNCTIONS).indexOf(functions[i]);
+                if (_functions[i] == -1) {
+                    throw error("unknown aggregate function: %s",
+                                functions[i]);
+                } else if ((_functions[i] == SUM || _functions[i] == AVG)
+                           && input.types().get(sources[i]) == Type.INT) {
+                    _integerSums[i] = new long[INITIAL_RUN];
+                } else if (_functions[i] == SUM || _functions[i] == AVG) {
+                    _sums[i] = new double[INITIAL_RUN];
+                } else if (_functions[i] != COUNT) {
+                    _values[i] = new int[INITIAL_RUN];
+                }
+            }
+        }
+
+        @Override
+        String describe() {
+            int groups = _groups.width();
+            StringBuilder result = new StringBuilder("Aggregate");
+            if (groups > 0) {
+                result.append(" by (")
+                    .append(String.join(", ",
+                                        _input.titles().subList(0, groups)))
+                    .append(")");
+            }
+            return result.append(" into (")
+                .append(String.join(", ", titles())).append(")").toString();
+        }
+
+        @Override
+        Operator[] inputs() {
+            return new Operator[] { _input };
+        }
+
+        @Override
+        long estimate() {
+            return _groups.width() == 0 ? 1 : _input.estimate();
+        }
+
+        @Override
+        boolean advance() {
+            if (_counts == null) {
+                accumulate();
+            }
+            if (_next == _groups.size()) {
+                return false;
+            }
+            ValueDictionary dict = dictionary();
+            for (int i = 0; i < _tuple.length; i += 1) {
+                _tuple[i] = dict.encode(_functions[i] == GROUP
+                                        ? _input.dictionary().get(
+                                            _groups.get(_next, _sources[i]))
+                                        : result(i, _next));
+            }
+            _next += 1;
+            return true;
+        }
+
+        /** Return the types of the columns of an Aggregate of INPUT with
+         *  SOURCES and FUNCTIONS: that of the source for a grouping column
+         *  or a min or max, int for a count or the sum of ints, and double
+         *  for any other sum or an avg. */
+        private static List<Type> types(Output input, int[] sources,
+                                        String[] functions) {
+            ArrayList<Type> types = new ArrayList<Type>();
+            for (int i = 0; i < sources.length; i += 1) {
+                String function = functions[i];
+                Type source = function == null || !function.equals("count")
+                    ? input.types().get(sources[i]) : Type.INT;
+                if (function == null || function.equals("min")
+                    || function.equals("max") || function.equals("count")) {
+                    types.add(source);
+                } else if (function.equals("sum") && source == Type.INT) {
+                    types.add(Type.INT);
+                } else {
+                    types.add(Type.DOUBLE);
+                }
+            }
+            return types;
+        }
+
+        /** Consume all the tuples of _input, forming the groups and their
+         *  aggregates. */
+        private void accumulate() {
+            _counts = new long[INITIAL_RUN];
+            _ranks = new int[_functions.length][];
+            for (int i = 0; i < _functions.length; i += 1) {
+                if (_values[i] != null) {
+                    _ranks[i] = _input.dictionary().ranks(types().get(i));
+                }
+            }
+            int[] input = _input.tuple();
+            while (_input.next()) {
+                int g = _groups.add(input);
+                if (g == _counts.length) {
+                    grow();
+                }
+                _counts[g] += 1;
+                for (int i = 0; i < _functions.length; i += 1) {
+                    int function = _functions[i];
+                    if (function == GROUP || function == COUNT) {
+                        continue;
+                    }
+                    int code = input[_sources[i]];
+                    if (_integerSums[i] != null) {
+                        _integerSums[i][g] = sum(_integerSums[i][g], code);
+                    } else if (function == SUM || function == AVG) {
+                        _sums[i][g] += number(code);
+                    } else if (_counts[g] == 1
+                               || (_ranks[i][code] < _ranks[i][_values[i][g]])
+                                  == (function == MIN)) {
+                        _values[i][g] = code;
+                    }
+                }
+            }
+            if (_groups.width() == 0 && _groups.size() == 0) {
+                _groups.add(input);
+            }
+        }
+
+        /** Double the room for the aggregates of groups. */
+        private void grow() {
+            int size = 2 * _counts.length;
+            _counts = Arrays.copyOf(_counts, size);
+            for (int i = 0; i < _functions.length; i += 1) {
+                if (_values[i] != null) {
+                    _values[i] = Arrays.copyOf(_values[i], size);
+                }
+                if (_sums[i] != null) {
+                    _sums[i] = Arrays.copyOf(_sums[i], size);
+                }
+                if (_integerSums[i] != null) {
+                    _integerSums[i] = Arrays.copyOf(_integerSums[i], size);
+                }
+            }
+        }
+
+        /** Return the numeric value of the value whose code is CODE,
+         *  which must be a number. */
+        private double number(int code) {
+            ValueDictionary dict = _input.dictionary();
+            if (!Type.DOUBLE.accepts(dict.kind(code))) {
+                throw error("not a number: '%s'", dict.get(code));
+            }
+            return dict.number(code);
+        }
+
+        /** Return SUM plus the int whose code is CODE. */
+        private long sum(long sum, int code) {
+            try {
+                return Math.addExact(sum, _input.dictionary().integer(code));
+            } catch (ArithmeticException e) {
+                throw error("sum too large for an int");
+            }
+        }
+
+        /** Return the value of the aggregate in my Ith column for the
+         *  group numbered G: the empty string for the minimum, maximum, or
+         *  average of an empty group. */
+        private String result(int i, int g) {
+            long count = _counts[g];
+            switch (_functions[i]) {
+            case COUNT:
+                return Long.toString(count);
+            case SUM:
+                return _integerSums[i] != null
+                    ? Long.toString(_integerSums[i][g])
+                    : numeral(_sums[i][g]);
+            case AVG:
+                if (count == 0) {
+                    return "";
+                }
+                return numeral(_integerSums[i] != null
+                               ? (double) _integerSums[i][g] / count
+                               : _sums[i][g] / count);
+            default:
+                return count == 0 ? ""
+                    : _input.dictionary().get(_values[i][g]);
+            }
+        }
+
+        /** Return X as a numeral, without a fraction if it is a whole
+         *  number. */
+        private static String numeral(double x) {
+            if (x == Math.rint(x) && Math.abs(x) < 1e15) {
+                return Long.toString((long) x);
+            }
+            return Double.toString(x);
+        }
+
+        /** The names of the aggregate functions, in the order of their
+         *  numbers. */
+        static final String[] FUNCTIONS = {
+            "count", "sum", "min", "max", "avg"
+        };
+        /** Numbers of the aggregate functions, and GROUP, which marks a
+         *  column that is not an aggregate. */
+        private static final int COUNT = 0, SUM = 1, MIN = 2, MAX = 3,
+            AVG = 4, GROUP = -1;
+
+        /** Source of my tuples. */
+        private final Output _input;
+        /** For each of my columns, the position in the input tuples of the
+         *  value it is taken from or aggregates. */
+        private final int[] _sources;
+        /** For each of my columns, the number of the aggregate function
+         *  it computes, or GROUP. */
+        private final int[] _functions;
+        /** The distinct values of the grouping columns, numbered in order
+         *  of appearance. */
+        private final TupleSet _groups;
+        /** The number of input tuples in each group, or null before
+         *  the input has been consumed. */
+        private long[] _counts;
+        /** _values[i][g] is the code of the least or greatest value of
+         *  column i in group g, if it is a min or max, and _values[i] is
+         *  null otherwise. */
+        private final int[][] _values;
+        /** _sums[i][g] is the sum for column i in group g, if it is a sum
+         *  or avg of doubles, and _sums[i] is null otherwise. */
+        private final double[][] _sums;
+        /** _integerSums[i][g] is the sum for column i in group g, if it is
+         *  a sum or avg of ints, and _integerSums[i] is null otherwise. */
+        private final long[][] _integerSums;
+        /** For each min or max column, the ranks of the codes of my
+         *  input's dictionary in the order of its type. */
+        private int[][] _ranks;
+        /** The number of the next group to produce. */
+        private int _next;
+    }
+
+    /** Default number of ints a Sort holds in memory. */
+    static final int RUN_SIZE = 1 << 24;
+    /** Initial capacity, in records, of a Sort's run. */
+    private static final int INITIAL_RUN = 1024;
+    /** Size of the buffers for reading and writing runs. */
+    private static final int IO_BUFFER = 1 << 16;
+
+    /** The array holding my current tuple. */
+    protected final int[] _tuple;
+    /** Number of tuples produced so far. */
+    private long _count;
+    /** True iff the time spent producing tuples is to be recorded. */
+    private boolean _timed;
+    /** Time spent producing tuples, in nanoseconds. */
+    private long _nanos;
+}
@@ -0,0 +1,166 @@
+package db61b;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** A cache of parsed select clauses, so that a clause that differs from
+ *  one seen before only in its literals is neither parsed nor resolved
+ *  against its tables again.  A clause is keyed on its tokens, with
+ *  each literal replaced by a placeholder, and its literals
+ *  are supplied afresh each time it is used.  Only the CAPACITY most
+ *  recently used clauses, of at most MAX_TOKENS tokens each, are kept.
+ *  @author Adam Shi
+ */
+class PlanCache {
+
+    /** Return the key for a select clause whose tokens are TOKENS: the
+     *  tokens, with each literal replaced by "?". */
+    static List<String> key(List<String> tokens) {
+        String[] key = tokens.toArray(new String[tokens.size()]);
+        for (int k = 0; k < key.length; k += 1) {
+            if (key[k].startsWith("'")) {
+                key[k] = PARAMETER;
+            }
+        }
+        return Arrays.asList(key);
+    }
+
+    /** Return true iff KEY is the key for a select clause whose tokens
+     *  are TOKENS.  This is cheaper than computing and comparing the key
+     *  for TOKENS. */
+    static boolean matches(List<String> key, List<String> tokens) {
+        if (key.size() != tokens.size()) {
+            return false;
+        }
+        for (int k = 0; k < key.size(); k += 1) {
+            String token = tokens.get(k);
+            if (key.get(k) == PARAMETER ? !token.startsWith("'")
+                : !key.get(k).equals(token)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Return the clause cached under KEY, or null if there is none. */
+    synchronized Prepared get(List<String> key) {
+        return _clauses.get(key);
+    }
+
+    /** Cache CLAUSE under KEY, dropping the least recently used clause
+     *  if there are then more than CAPACITY. */
+    synchronized void put(List<String> key, Prepared clause) {
+        _clauses.put(key, clause);
+    }
+
+    /** Return the number of clauses cached. */
+    synchronized int size() {
+        return _clauses.size();
+    }
+
+    /** A parsed select clause whose literals are parameters. */
+    static class Prepared {
+
+        /** A select clause on the tables named FROMNAMES, currently
+         *  TABLES, that selects the columns or aggregates named COLUMNS
+         *  of the rows satisfying CONDITIONS, given in the order in which
+         *  their literals appear, grouped by GROUPBY and ordered by
+         *  ORDERBY. */
+        Prepared(List<String> fromNames, Table[] tables, List<String> columns,
+                 List<Condition> conditions, List<String> groupBy,
+                 List<String> orderBy) {
+            _fromNames = fromNames.toArray(new String[fromNames.size()]);
+            _titles = new String[tables.length][];
+            _types = new Type[tables.length][];
+            for (int t = 0; t < tables.length; t += 1) {
+                _titles[t] = new String[tables[t].columns()];
+                _types[t] = new Type[_titles[t].length];
+                for (int c = 0; c < _titles[t].length; c += 1) {
+                    _titles[t][c] = tables[t].getTitle(c);
+                    _types[t][c] = tables[t].getType(c);
+                }
+            }
+            _columns = columns;
+            _conditions = conditions;
+            _groupBy = groupBy;
+            _orderBy = orderBy;
+        }
+
+        /** Return the names of the tables I draw on. */
+        List<String> fromNames() {
+            return List.of(_fromNames);
+        }
+
+        /** Return true iff TABLES, the current tables named by
+         *  fromNames(), have the same columns, of the same types, as
+         *  those from which I was parsed. */
+        boolean fits(Table[] tables) {
+            for (int t = 0; t < tables.length; t += 1) {
+                if (tables[t].columns() != _titles[t].length) {
+                    return false;
+                }
+                for (int c = 0; c < _titles[t].length; c += 1) {
+                    if (!tables[t].getTitle(c).equals(_titles[t][c])
+                        || tables[t].getType(c) != _types[t][c]) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        /** Return the pipeline that produces my rows from TABLES, which
+         *  must fit me, with LITERALS, in order, as my literals, scanning
+         *  in parallel if PARALLEL and worthwhile (see Planner.plan). */
+        Operator.Output plan(Table[] tables, List<String> literals,
+                             boolean parallel) {
+            ArrayList<Condition> conditions = new ArrayList<>();
+            int k = 0;
+            for (Condition condition : _conditions) {
+                if (condition.getLiteral() == null) {
+                    conditions.add(condition.bind(null));
+                } else {
+                    conditions.add(condition.bind(literals.get(k)));
+                    k += 1;
+                }
+            }
+            return Planner.plan(_fromNames, tables, _columns, conditions,
+                                _groupBy, _orderBy, parallel);
+        }
+
+        /** Names of the tables I draw on. */
+        private final String[] _fromNames;
+        /** The titles and types of the columns of each of the tables from
+         *  which I was parsed. */
+        private final String[][] _titles;
+        /** See _titles. */
+        private final Type[][] _types;
+        /** Names of the columns or aggregates I select. */
+        private final List<String> _columns;
+        /** My conditions, with their literals as first seen. */
+        private final List<Condition> _conditions;
+        /** Names of the columns by which I group and order rows. */
+        private final List<String> _groupBy, _orderBy;
+    }
+
+    /** Stands for a literal in a key. */
+    private static final String PARAMETER = "?";
+
+    /** Largest number of clauses kept. */
+    static final int CAPACITY = 256;
+    /** Largest number of tokens in a clause that is cached. */
+    static final int MAX_TOKENS = 64;
+
+    /** The cached clauses, by key, least recently used first. */
+    private final LinkedHashMap<List<String>, Prepared> _clauses =
+        new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<String>,
+                                                Prepared> eldest) {
+                return size() > CAPACITY;
+            }
+        };
+}
@@ -0,0 +1,370 @@
+package db61b;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static db61b.Utils.*;
+
+/** Chooses how to evaluate a select from one or more tables: the natural
+ *  join of all of them (requiring every pair of columns with the same
+ *  name to agree), restricted by a list of Conditions and projected onto
+ *  a list of columns.
+ *
+ *  Each table is first scanned through its most useful index, if any,
+ *  with the conditions that involve it alone.  The scanned tables are
+ *  then joined one at a time, greedily: the join order starts from the
+ *  table expected to yield the fewest rows and at each step adds the
+ *  table whose join with those already chosen is expected to be
+ *  smallest, preferring tables that share a column with them to
+ *  cartesian products.  Tables are joined through a hash table on their
+ *  common columns, except that the first two are merged in order when
+ *  the rows of both are known to be sorted by those columns (see
+ *  Table.sortedBy).  Estimates come from the tables' sizes, from
+ *  the number of rows their indexes find, and from their column
+ *  statistics.  Each condition involving several tables is applied as
+ *  soon as all of them have been joined.  If the result must be ordered,
+ *  the joined rows are sorted just before their values are selected.
+ *  If it is grouped, the values selected are aggregated last, which
+ *  keeps the groups in that order.
+ *
+ *  A plain select from one large table, neither grouped nor ordered, may
+ *  instead be evaluated in parallel (see Operator.ParallelSelect), with
+ *  the rows scanned divided among the threads of a fork-join pool.
+ *  @author Adam Shi
+ */
+class Planner {
+
+    /** Return a pipeline that produces the values of the columns
+     *  COLUMNNAMES of the natural join of TABLES that satisfy CONDITIONS,
+     *  whose columns are selected from TABLES, encoded by the dictionary
+     *  of TABLES[0]. */
+    static Operator.Output plan(Table[] tables, List<String> columnNames,
+                                List<Condition> conditions) {
+        return plan(tables, columnNames, conditions, false);
+    }
+
+    /** Return a pipeline as for plan(TABLES, COLUMNNAMES, CONDITIONS)
+     *  that, if PARALLEL, may scan a single large table in parallel (see
+     *  plan(NAMES, TABLES, COLUMNNAMES, CONDITIONS, GROUPBY, ORDERBY,
+     *  PARALLEL)). */
+    static Operator.Output plan(Table[] tables, List<String> columnNames,
+                                List<Condition> conditions,
+                                boolean parallel) {
+        String[] names = new String[tables.length];
+        for (int t = 0; t < names.length; t += 1) {
+            names[t] = "table " + (t + 1);
+        }
+        return plan(names, tables, columnNames, conditions,
+                    Collections.<String>emptyList(),
+                    Collections.<String>emptyList(), parallel);
+    }
+
+    /** Return a pipeline as for plan(TABLES, COLUMNNAMES, CONDITIONS),
+     *  where NAMES are the names of TABLES, used to describe it. */
+    static Operator.Output plan(String[] names, Table[] tables,
+                                List<String> columnNames,
+                                List<Condition> conditions) {
+        return plan(names, tables, columnNames, conditions,
+                    Collections.<String>emptyList());
+    }
+
+    /** Return a pipeline as for plan(NAMES, TABLES, COLUMNNAMES,
+     *  CONDITIONS) whose output is in increasing order of the values of
+     *  the columns ORDERBY, most significant first, and in an unspecified
+     *  order if ORDERBY is empty. */
+    static Operator.Output plan(String[] names, Table[] tables,
+                                List<String> columnNames,
+                                List<Condition> conditions,
+                                List<String> orderBy) {
+        return plan(names, tables, columnNames, conditions,
+                    Collections.<String>emptyList(), orderBy);
+    }
+
+    /** Return a pipeline as for plan(NAMES, TABLES, COLUMNNAMES,
+     *  CONDITIONS, ORDERBY), where COLUMNNAMES may also include
+     *  aggregates, of the form F(C) for one of the functions in
+     *  Operator.Aggregate.FUNCTIONS and a column C, or count(*).  If
+     *  there are any, or if GROUPBY is not empty, the rows selected are
+     *  grouped by the values of the columns GROUPBY, and one row is
+     *  produced for each group; every other column must then be an
+     *  aggregate, and the result may only be ordered by columns of
+     *  GROUPBY.  The column for an aggregate F(C) is titled F_C, and that
+     *  for count(*) is titled count. */
+    static Operator.Output plan(String[] names, Table[] tables,
+                                List<String> columnNames,
+                                List<Condition> conditions,
+                                List<String> groupBy,
+                                List<String> orderBy) {
+        return plan(names, tables, columnNames, conditions, groupBy, orderBy,
+                    false);
+    }
+
+    /** Return a pipeline as for plan(NAMES, TABLES, COLUMNNAMES,
+     *  CONDITIONS, GROUPBY, ORDERBY) that, if PARALLEL, scans a single
+     *  table of at least PARALLEL_ROWS rows in parallel when the select is
+     *  neither grouped nor ordered.  Its output then has no duplicates. */
+    static Operator.Output plan(String[] names, Table[] tables,
+                                List<String> columnNames,
+                                List<Condition> conditions,
+                                List<String> groupBy,
+                                List<String> orderBy, boolean parallel) {
+        if (parallel && tables.length == 1 && tables[0].size() >= PARALLEL_ROWS
+            && groupBy.isEmpty() && orderBy.isEmpty()
+            && !aggregated(columnNames)) {
+            Column[] columns = new Column[columnNames.size()];
+            for (int i = 0; i < columns.length; i += 1) {
+                columns[i] = new Column(columnNames.get(i), tables);
+            }
+            Operator.Scan scan =
+                tables[0].access(new int[1], 0, conditions, names[0]);
+            return new Operator.ParallelSelect(scan, tables, conditions,
+                                               columns, columnNames);
+        }
+        int n = tables.length;
+        int[] rows = new int[n];
+        Operator[] inputs = new Operator[n];
+        ArrayList<Condition> pending = new ArrayList<Condition>();
+        for (int t = 0; t < n; t += 1) {
+            ArrayList<Condition> local = new ArrayList<Condition>();
+            for (Condition cond : conditions) {
+                if (cond.appliesOnlyTo(t)) {
+                    local.add(cond);
+                }
+            }
+            inputs[t] = tables[t].scan(tables, rows, t, local, names[t]);
+        }
+        for (Condition cond : conditions) {
+            if (!cond.appliesOnlyTo(cond.getColumn1().getTable())) {
+                pending.add(cond);
+            }
+        }
+
+        boolean[] joined = new boolean[n];
+        int first = 0;
+        for (int t = 1; t < n; t += 1) {
+            if (inputs[t].estimate() < inputs[first].estimate()) {
+                first = t;
+            }
+        }
+        joined[first] = true;
+        Operator plan = inputs[first];
+        IntList order = new IntList();
+        order.add(first);
+        for (int step = 1; step < n; step += 1) {
+            Operator best = null;
+            int bestTable = -1;
+            List<String> bestKeys = null;
+            boolean bestConnected = false;
+            for (int t = 0; t < n; t += 1) {
+                if (joined[t]) {
+                    continue;
+                }
+                List<String> keys = keys(tables, joined, t);
+                Operator join =
+                    new Operator.HashJoin(tables, plan, positions(order),
+                                          inputs[t], new int[] { t }, keys);
+                boolean connected = !keys.isEmpty();
+                if (best == null || connected && !bestConnected
+                    || connected == bestConnected
+                       && join.estimate() < best.estimate()) {
+                    best = join;
+                    bestTable = t;
+                    bestKeys = keys;
+                    bestConnected = connected;
+                }
+            }
+            if (step == 1) {
+                List<String> merged =
+                    mergeKeys(tables, first, plan, bestTable,
+                              inputs[bestTable], bestKeys);
+                if (merged != null) {
+                    best = new Operator.MergeJoin(tables, plan, first,
+                                                  inputs[bestTable],
+                                                  bestTable, merged);
+                }
+            }
+            joined[bestTable] = true;
+            order.add(bestTable);
+            plan = applicable(best, tables, pending, joined);
+        }
+
+        if (!orderBy.isEmpty()) {
+            Column[] keys = new Column[orderBy.size()];
+            for (int k = 0; k < keys.length; k += 1) {
+                keys[k] = new Column(orderBy.get(k), tables);
+            }
+            plan = new Operator.Sort(plan, tables, keys);
+        }
+
+        Operator.Output result;
+        if (groupBy.isEmpty() && !aggregated(columnNames)) {
+            result = project(plan, tables, columnNames);
+        } else {
+            result = aggregate(plan, tables, columnNames, groupBy, orderBy);
+        }
+        int ordered = 0;
+        while (ordered < orderBy.size()
+               && result.titles().contains(orderBy.get(ordered))) {
+            ordered += 1;
+        }
+        result.setOrdering(orderBy.subList(0, ordered));
+        return result;
+    }
+
+    /** Return true iff any of COLUMNNAMES is an aggregate. */
+    private static boolean aggregated(List<String> columnNames) {
+        for (String name : columnNames) {
+            if (AGGREGATE.matcher(name).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Return a Project of the values of the columns COLUMNNAMES of the
+     *  rows of TABLES numbered by the tuples of PLAN, encoded by the
+     *  dictionary of TABLES[0]. */
+    private static Operator.Project project(Operator plan, Table[] tables,
+                                            List<String> columnNames) {
+        Column[] columns = new Column[columnNames.size()];
+        for (int i = 0; i < columns.length; i += 1) {
+            columns[i] = new Column(columnNames.get(i), tables);
+        }
+        return new Operator.Project(plan, tables, columns, columnNames,
+                                    tables[0].dictionary());
+    }
+
+    /** Return an Aggregate of the rows of TABLES numbered by the tuples of
+     *  PLAN, grouped by GROUPBY, that produces COLUMNNAMES, as described
+     *  for plan, checking that the result may be ordered by ORDERBY. */
+    private static Operator.Aggregate aggregate(Operator plan,
+                                                Table[] tables,
+                                                List<String> columnNames,
+                                                List<String> groupBy,
+                                                List<String> orderBy) {
+        for (String name : orderBy) {
+            if (!groupBy.contains(name)) {
+                throw error("cannot order by %s, which is not grouped",
+                            name);
+            }
+        }
+        ArrayList<String> inputNames = new ArrayList<String>(groupBy);
+        ArrayList<String> titles = new ArrayList<String>();
+        int[] sources = new int[columnNames.size()];
+        String[] functions = new String[sources.length];
+        for (int i = 0; i < sources.length; i += 1) {
+            String name = columnNames.get(i);
+            Matcher aggregate = AGGREGATE.matcher(name);
+            if (!aggregate.matches()) {
+                sources[i] = groupBy.indexOf(name);
+                if (sources[i] == -1) {
+                    throw error("%s is neither grouped nor aggregated",
+                                name);
+                }
+                titles.add(name);
+                continue;
+            }
+            functions[i] = aggregate.group(1);
+            String argument = aggregate.group(2);
+            if (argument.equals("*")) {
+                if (!functions[i].equals("count")) {
+                    throw error("only count may apply to *");
+                }
+                titles.add(functions[i]);
+                continue;
+            }
+            sources[i] = inputNames.indexOf(argument);
+            if (sources[i] == -1) {
+                sources[i] = inputNames.size();
+                inputNames.add(argument);
+            }
+            titles.add(functions[i] + "_" + argument);
+        }
+        return new Operator.Aggregate(project(plan, tables, inputNames),
+                                      groupBy.size(), sources, functions,
+                                      titles);
+    }
+
+    /** Smallest number of rows in a table that plan scans in parallel. */
+    static final int PARALLEL_ROWS = 1 << 16;
+
+    /** Matches an aggregate in a list of column names, such as sum(C) or
+     *  count(*), giving the function and its argument. */
+    private static final Pattern AGGREGATE =
+        Pattern.compile("(\\w+)\\((\\*|\\w+)\\)");
+
+    /** Return the titles of the columns of TABLES[T] that also belong to
+     *  some TABLES[k] for which JOINED[k]. */
+    private static List<String> keys(Table[] tables, boolean[] joined,
+                                     int t) {
+        ArrayList<String> keys = new ArrayList<String>();
+        for (int c = 0; c < tables[t].columns(); c += 1) {
+            String title = tables[t].getTitle(c);
+            for (int k = 0; k < tables.length; k += 1) {
+                if (joined[k] && tables[k].findColumn(title) != -1) {
+                    keys.add(title);
+                    break;
+                }
+            }
+        }
+        return keys;
+    }
+
+    /** Return KEYS, the titles of the columns on which TABLES[LEFT] and
+     *  TABLES[RIGHT] are joined, in the order in which LEFTINPUT and
+     *  RIGHTINPUT produce their rows if both produce them in increasing
+     *  order of all of KEYS, and those columns have the same types in
+     *  both tables.  Otherwise, return null. */
+    private static List<String> mergeKeys(Table[] tables,
+                                          int left, Operator leftInput,
+                                          int right, Operator rightInput,
+                                          List<String> keys) {
+        int k = keys.size();
+        List<String> leftOrder = leftInput.ordering(),
+            rightOrder = rightInput.ordering();
+        if (k == 0 || leftOrder.size() < k || rightOrder.size() < k) {
+            return null;
+        }
+        List<String> merged = leftOrder.subList(0, k);
+        if (!merged.equals(rightOrder.subList(0, k))
+            || !merged.containsAll(keys)) {
+            return null;
+        }
+        for (String title : merged) {
+            if (tables[left].getType(tables[left].findColumn(title))
+                != tables[right].getType(tables[right].findColumn(title))) {
+                return null;
+            }
+        }
+        return merged;
+    }
+
+    /** Return the contents of LIST as an array. */
+    private static int[] positions(IntList list) {
+        int[] result = new int[list.size()];
+        for (int i = 0; i < result.length; i += 1) {
+            result[i] = list.get(i);
+        }
+        return result;
+    }
+
+    /** Return PLAN, whose tuples are row numbers of TABLES, filtered by
+     *  those of PENDING that involve only tables for which JOINED is
+     *  true, removing them from PENDING. */
+    private static Operator applicable(Operator plan, Table[] tables,
+                                       List<Condition> pending,
+                                       boolean[] joined) {
+        ArrayList<Condition> ready = new ArrayList<Condition>();
+        for (int i = 0; i < pending.size(); i += 1) {
+            if (pending.get(i).appliesWithin(joined)) {
+                ready.add(pending.remove(i));
+                i -= 1;
+            }
+        }
+        return ready.isEmpty() ? plan
+            : new Operator.Filter(plan, tables, ready);
+    }
+}
@@ -0,0 +1,98 @@
+package db61b;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/** A cache of the results of select clauses, so that a select repeated
+ *  against tables that have not changed since is not run again.  A
+ *  result is keyed on the tokens of its clause, literals included, and
+ *  is valid only while each table it was computed from has the version
+ *  (see Table.version) that it had then; a result found to be stale is
+ *  discarded.  The results kept are within a memory budget (see
+ *  Table.memory): when adding one takes their total estimated size over
+ *  the budget, the least recently used others are dropped.
+ *  @author Adam Shi
+ */
+class ResultCache {
+
+    /** An empty cache whose results take at most about BUDGET bytes. */
+    ResultCache(long budget) {
+        _budget = budget;
+    }
+
+    /** Return the result of the select clause whose tokens are CLAUSE
+     *  computed from TABLES, which are locked for reading at least, if I
+     *  have it, and otherwise null. */
+    synchronized Table get(List<String> clause, Table[] tables) {
+        Entry entry = _results.get(clause);
+        if (entry == null) {
+            return null;
+        }
+        for (int t = 0; t < tables.length; t += 1) {
+            if (tables[t].version() != entry._versions[t]) {
+                _results.remove(clause);
+                _resident -= entry._bytes;
+                return null;
+            }
+        }
+        return entry._result;
+    }
+
+    /** Record that RESULT is the result of the select clause whose tokens
+     *  are CLAUSE computed from TABLES, which are locked for reading at
+     *  least.  RESULT must not be changed afterwards. */
+    synchronized void put(List<String> clause, Table[] tables,
+                          Table result) {
+        long bytes = result.memory();
+        if (bytes > _budget) {
+            return;
+        }
+        long[] versions = new long[tables.length];
+        for (int t = 0; t < tables.length; t += 1) {
+            versions[t] = tables[t].version();
+        }
+        Entry old = _results.put(clause, new Entry(versions, result, bytes));
+        if (old != null) {
+            _resident -= old._bytes;
+        }
+        _resident += bytes;
+        Iterator<Entry> eldest = _results.values().iterator();
+        while (_resident > _budget) {
+            _resident -= eldest.next()._bytes;
+            eldest.remove();
+        }
+    }
+
+    /** Return the estimated number of bytes held by my results. */
+    synchronized long resident() {
+        return _resident;
+    }
+
+    /** A cached result. */
+    private static class Entry {
+        /** RESULT, estimated to take BYTES bytes, computed from tables
+         *  whose versions were VERSIONS. */
+        Entry(long[] versions, Table result, long bytes) {
+            _versions = versions;
+            _result = result;
+            _bytes = bytes;
+        }
+
+        /** The versions of the tables from which _result was computed. */
+        private final long[] _versions;
+        /** The result. */
+        private final Table _result;
+        /** Estimated size of _result in bytes. */
+        private final long _bytes;
+    }
+
+    /** My results, by the tokens of their clauses, least recently used
+     *  first. */
+    private final LinkedHashMap<List<String>, Entry> _results =
+        new LinkedHashMap<>(16, 0.75f, true);
+    /** Total estimated size of the results in _results, in bytes. */
+    private long _resident;
+    /** Largest value of _resident allowed. */
+    private final long _budget;
+}
@@ -0,0 +1,95 @@
+package db61b;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static db61b.Utils.*;
+
+/** A server that runs a session for each client that connects to a port
+ *  on the local host, all sessions sharing one Database.  A session reads
+ *  statements from its client and writes to it exactly what Main would
+ *  write on the standard output, prompts included.  Each session runs on
+ *  a thread of a fixed pool, so that at most MAX_SESSIONS run at once and
+ *  later clients wait for a thread.  Sessions lock the tables they use
+ *  for each statement (see Database.lock), so that any number may read a
+ *  table at once, while changes to a table wait only for the statements
+ *  using that table.
+ *  @author Adam Shi
+ */
+class Server {
+
+    /** A server for DATABASE on local port PORT, reporting the sizes and
+     *  timings of loads and stores iff STATS. */
+    Server(Database database, int port, boolean stats) {
+        _database = database;
+        _port = port;
+        _stats = stats;
+    }
+
+    /** Accept and serve clients until the program is stopped. */
+    void run() {
+        ExecutorService sessions = Executors.newFixedThreadPool(MAX_SESSIONS);
+        try (ServerSocket listener =
+             new ServerSocket(_port, 0, InetAddress.getLoopbackAddress())) {
+            System.out.printf("Listening on port %d%n",
+                              listener.getLocalPort());
+            while (true) {
+                Socket client = listener.accept();
+                sessions.execute(() -> serve(client));
+            }
+        } catch (IOException e) {
+            throw error("cannot listen on port %d: %s", _port,
+                        e.getMessage());
+        } finally {
+            sessions.shutdownNow();
+        }
+    }
+
+    /** Run a session for CLIENT, closing it when done. */
+    private void serve(Socket client) {
+        try (client) {
+            PrintStream out =
+                new PrintStream(new BufferedOutputStream(
+                                    client.getOutputStream()),
+                                false, UTF_8);
+            InputStream in = new FilterInputStream(client.getInputStream()) {
+                @Override
+                public int read(byte[] buf, int off, int len)
+                    throws IOException {
+                    out.flush();
+                    return super.read(buf, off, len);
+                }
+            };
+            CommandInterpreter interpreter =
+                new CommandInterpreter(new InputStreamReader(in, UTF_8),
+                                       out, out, _database);
+            interpreter.setStats(_stats);
+            out.printf("DB61B System Adam Shi.  Version %s.%n",
+                       Main.VERSION);
+            interpreter.run();
+            out.flush();
+        } catch (IOException e) {
+            /* The client has gone; nothing more to do. */
+        }
+    }
+
+    /** Largest number of sessions served at once. */
+    static final int MAX_SESSIONS = 64;
+
+    /** The database shared by all sessions. */
+    private final Database _database;
+    /** The port on which I listen, or 0 for any free port. */
+    private final int _port;
+    /** True iff sessions report statistics on loads and stores. */
+    private final boolean _stats;
+}
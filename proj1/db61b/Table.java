@@ -1,14 +1,15 @@
 package db61b;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static db61b.Utils.*;
 
@@ -16,9 +17,39 @@ import static db61b.Utils.*;
  *  @author P. N. Hilfinger and Adam Shi
  */
 class Table implements Iterable<Row> {
+
+    /* REPRESENTATION.
+     *
+     * Tables are stored by column: each column is an array of codes from
+     * a ValueDictionary, so that each distinct value is stored once no
+     * matter how many rows contain it, and a row costs four bytes per
+     * column.  Rows are numbered 0 .. size() - 1 in order of insertion
+     * (tables only grow), and Row objects are created only when asked
+     * for.  An open-addressed hash table of row numbers, hashed on the
+     * rows' codes, detects duplicate rows.  Statistics on each column,
+     * kept up to date as rows are added, let a Planner estimate the
+     * sizes of the results of selects.  Each column has a Type, which
+     * limits the values it may hold and determines how they compare;
+     * numeric values are stored as codes like any other, and their
+     * numbers are kept by the dictionary. */
+
     /** A new Table whose columns are given by COLUMNTITLES, which may
      *  not contain duplicate names. */
     Table(String[] columnTitles) {
+        this(columnTitles, new ValueDictionary());
+    }
+
+    /** A new Table whose columns are given by COLUMNTITLES, which may
+     *  not contain duplicate names, and whose values are encoded by
+     *  DICTIONARY, which may be shared with other tables. */
+    Table(String[] columnTitles, ValueDictionary dictionary) {
+        this(columnTitles, strings(columnTitles.length), dictionary);
+    }
+
+    /** A new Table whose columns are given by COLUMNTITLES, which may
+     *  not contain duplicate names, and have the respective TYPES, and
+     *  whose values are encoded by DICTIONARY. */
+    Table(String[] columnTitles, Type[] types, ValueDictionary dictionary) {
         for (int i = columnTitles.length - 1; i >= 1; i -= 1) {
             for (int j = i - 1; j >= 0; j -= 1) {
                 if (columnTitles[i].equals(columnTitles[j])) {
@@ -28,6 +59,14 @@ class Table implements Iterable<Row> {
             }
         }
         _titles = columnTitles;
+        _types = types;
+        _dict = dictionary;
+        _columns = new int[columnTitles.length][INITIAL_ROWS];
+        _slots = new int[4 * INITIAL_ROWS];
+        _statistics = new ColumnStatistics[columnTitles.length];
+        for (int c = 0; c < _statistics.length; c += 1) {
+            _statistics[c] = new ColumnStatistics(dictionary, types[c]);
+        }
     }
 
     /** A new Table whose columns are give by COLUMNTITLES. */
@@ -35,6 +74,46 @@ class Table implements Iterable<Row> {
         this(columnTitles.toArray(new String[columnTitles.size()]));
     }
 
+    /** A new Table whose columns are given by COLUMNTITLES and whose
+     *  values are encoded by DICTIONARY. */
+    Table(List<String> columnTitles, ValueDictionary dictionary) {
+        this(columnTitles.toArray(new String[columnTitles.size()]),
+             dictionary);
+    }
+
+    /** A new Table whose columns are given by COLUMNTITLES and have the
+     *  respective TYPES, and whose values are encoded by DICTIONARY. */
+    Table(List<String> columnTitles, List<Type> types,
+          ValueDictionary dictionary) {
+        this(columnTitles.toArray(new String[columnTitles.size()]),
+             types.toArray(new Type[types.size()]), dictionary);
+    }
+
+    /** Return a new Table whose columns are described by HEADINGS, as
+     *  in the header of a .db file: each is a title, optionally followed
+     *  by a colon and a type (see Type.heading).  Its values are encoded
+     *  by DICTIONARY. */
+    static Table withHeadings(String[] headings, ValueDictionary dictionary) {
+        String[] titles = new String[headings.length];
+        Type[] types = strings(headings.length);
+        for (int c = 0; c < headings.length; c += 1) {
+            int colon = headings[c].indexOf(':');
+            titles[c] = colon == -1 ? headings[c]
+                : headings[c].substring(0, colon);
+            if (colon != -1) {
+                types[c] = Type.named(headings[c].substring(colon + 1));
+            }
+        }
+        return new Table(titles, types, dictionary);
+    }
+
+    /** Return an array of N STRING types. */
+    private static Type[] strings(int n) {
+        Type[] types = new Type[n];
+        Arrays.fill(types, Type.STRING);
+        return types;
+    }
+
     /** Return the number of columns in this table. */
     public int columns() {
         return _titles.length;
@@ -45,6 +124,16 @@ class Table implements Iterable<Row> {
         return _titles[k];
     }
 
+    /** Return the type of the Kth column. */
+    Type getType(int k) {
+        return _types[k];
+    }
+
+    /** Return the heading of the Kth column in a .db file. */
+    String getHeading(int k) {
+        return _types[k].heading(_titles[k]);
+    }
+
     /** Return the number of the column whose title is TITLE, or -1 if
      *  there isn't one. */
     public int findColumn(String title) {
@@ -58,13 +147,96 @@ class Table implements Iterable<Row> {
 
     /** Return the number of Rows in this table. */
     public int size() {
-        return _rows.size();
+        return _size;
+    }
+
+    /** Return an estimate of the number of bytes my contents occupy,
+     *  apart from my values themselves, which my dictionary holds. */
+    long memory() {
+        long bytes = _slots == null ? 0 : 4L * _slots.length;
+        for (int c = 0; c < _columns.length; c += 1) {
+            bytes += 4L * _columns[c].length + _statistics[c].memory();
+        }
+        for (Index index : _indexes.values()) {
+            bytes += index.memory();
+        }
+        return bytes;
+    }
+
+    /** Return the version of my contents: a number that changes whenever
+     *  rows are added to me, and that no other table, nor I with any
+     *  other contents, has had.  A result computed from me is therefore
+     *  still valid while my version is unchanged. */
+    synchronized long version() {
+        if (_version == 0) {
+            _version = VERSIONS.incrementAndGet();
+        }
+        return _version;
+    }
+
+    /** Return a table with my columns and rows, in the same order,
+     *  whose values are encoded by DICTIONARY: THIS, if mine are. */
+    Table withDictionary(ValueDictionary dictionary) {
+        if (dictionary == _dict) {
+            return this;
+        }
+        Table result = new Table(_titles, _types, dictionary);
+        result.addAll(this);
+        result._sortedBy = _sortedBy;
+        return result;
+    }
+
+    /** Return the statistics on the values in column number COLUMN. */
+    ColumnStatistics statistics(int column) {
+        return _statistics[column];
+    }
+
+    /** Return the dictionary that encodes my values. */
+    ValueDictionary dictionary() {
+        return _dict;
+    }
+
+    /** Return the value of column COL of row number ROW.  Requires
+     *  0 <= ROW < size() and 0 <= COL < columns(). */
+    String get(int row, int col) {
+        return _dict.get(_columns[col][row]);
+    }
+
+    /** Return the code of the value of column COL of row number ROW. */
+    int code(int row, int col) {
+        return _columns[col][row];
+    }
+
+    /** Return row number ROW as a Row.  Requires 0 <= ROW < size(). */
+    Row getRow(int row) {
+        String[] data = new String[_titles.length];
+        for (int c = 0; c < data.length; c += 1) {
+            data[c] = get(row, c);
+        }
+        return new Row(data);
     }
 
     /** Returns an iterator that returns my rows in an unspecified order. */
     @Override
     public Iterator<Row> iterator() {
-        return _rows.iterator();
+        return new Iterator<Row>() {
+            @Override
+            public boolean hasNext() {
+                return _next < _size;
+            }
+
+            @Override
+            public Row next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                _next += 1;
+                return getRow(_next - 1);
+            }
+
+            /** Number of the next row to deliver. */
+            private int _next;
+        };
     }
 
     /** Add ROW to THIS if no equal row already exists.  Return true if anything
@@ -73,276 +245,585 @@ class Table implements Iterable<Row> {
         if (row.size() != _titles.length) {
             return false;
         }
+        int[] codes = new int[_titles.length];
+        for (int c = 0; c < codes.length; c += 1) {
+            codes[c] = _dict.encode(row.get(c));
+        }
+        return addCodes(codes);
+    }
 
-        boolean add = true;
-        int sizeBefore = _rows.size();
-        for (Row oldRow: _rows) {
-            if (row.equals(oldRow)) {
-                add = false;
+    /** Add all of ROWS to THIS, skipping those that are already present or
+     *  that have the wrong number of columns.  Space for ROWS is reserved
+     *  in advance so that the table is not enlarged repeatedly while
+     *  growing, and all their values are checked before any is added, so
+     *  that a value of the wrong type adds none of them.  Return the
+     *  number of rows actually added. */
+    public int addAll(Collection<Row> rows) {
+        int[][] codes = new int[rows.size()][];
+        int n;
+        n = 0;
+        for (Row row : rows) {
+            if (row.size() == _titles.length) {
+                codes[n] = new int[_titles.length];
+                for (int c = 0; c < _titles.length; c += 1) {
+                    codes[n][c] = _dict.encode(row.get(c));
+                    check(c, codes[n][c]);
+                }
+                n += 1;
             }
         }
-        if (add) {
-            _rows.add(row);
-        }
-        int sizeAfter = _rows.size();
-        return sizeBefore != sizeAfter;
+        return addChecked(codes, n);
     }
 
-    /** Read the contents of the file NAME.db, and return as a Table.
-     *  Format errors in the .db file cause a DBException. */
-    static Table readTable(String name) {
-        BufferedReader input;
-        Table table;
-        table = null;
-        input = null;
-        try {
-            input = new BufferedReader(new FileReader(name + ".db"));
-            String header = input.readLine();
-            if (header == null) {
-                throw error("missing header in DB file");
+    /** Add all the rows of TABLE, which must have as many columns as I,
+     *  to THIS, as for addAll(Collection), skipping those that are
+     *  already present.  Return the number of rows actually added. */
+    int addAll(Table table) {
+        if (table.columns() != columns()) {
+            throw error("cannot add rows of %d columns to a table of %d",
+                        table.columns(), columns());
+        }
+        int[] recode =
+            table._dict == _dict ? null : table._dict.codesIn(_dict);
+        int[][] codes = new int[table._size][_titles.length];
+        for (int c = 0; c < _titles.length; c += 1) {
+            for (int row = 0; row < table._size; row += 1) {
+                int code = table._columns[c][row];
+                codes[row][c] = recode == null ? code : recode[code];
+                check(c, codes[row][c]);
             }
-            String[] columnNames = header.split(",");
-            Table table2 = new Table(columnNames);
-            String newRowData = input.readLine();
-            while (newRowData != null) {
-                String[] parsedNewRowData = newRowData.split(",");
-                Row newRow = new Row(parsedNewRowData);
-                table2.add(newRow);
-                newRowData = input.readLine();
+        }
+        return addChecked(codes, table._size);
+    }
+
+    /** Add the rows encoded by ROWS[0 .. N-1], whose values have been
+     *  checked, reserving space for all of them at once and skipping
+     *  those already present.  Return the number of rows added. */
+    private int addChecked(int[][] rows, int n) {
+        reserve(_size + n);
+        int added;
+        added = 0;
+        for (int k = 0; k < n; k += 1) {
+            if (addCheckedCodes(rows[k])) {
+                added += 1;
             }
-            return table2;
-        } catch (FileNotFoundException e) {
-            throw error("could not find %s.db", name);
-        } catch (IOException e) {
-            throw error("problem reading from %s.db", name);
-        } finally {
-            if (input != null) {
-                try {
-                    input.close();
-                } catch (IOException e) {
-                    /* Ignore IOException */
-                }
+        }
+        return added;
+    }
+
+    /** Add a row whose values are encoded by CODES, one per column, in my
+     *  dictionary, unless an equal row is already present.  CODES is
+     *  copied, and may be reused by the caller.  Return true iff the row
+     *  was added. */
+    boolean addCodes(int[] codes) {
+        for (int c = 0; c < codes.length; c += 1) {
+            check(c, codes[c]);
+        }
+        return addCheckedCodes(codes);
+    }
+
+    /** Add a row as for addCodes(CODES), whose values have been
+     *  checked. */
+    private boolean addCheckedCodes(int[] codes) {
+        reserve(_size + 1);
+        if (_slots == null) {
+            rebuildSlots();
+        }
+        int hash = hash(codes);
+        int mask = _slots.length - 1;
+        int s = (hash << 1) & mask;
+        while (_slots[s] != 0) {
+            if (_slots[s + 1] == hash && sameRow(_slots[s] - 1, codes)) {
+                return false;
             }
+            s = (s + 2) & mask;
+        }
+        if (!_sortedBy.isEmpty() && _size > 0 && precedesLast(codes)) {
+            _sortedBy = Collections.emptyList();
+        }
+        for (int c = 0; c < codes.length; c += 1) {
+            _columns[c][_size] = codes[c];
+            _statistics[c].add(codes[c]);
+        }
+        _slots[s] = _size + 1;
+        _slots[s + 1] = hash;
+        _size += 1;
+        _version = 0;
+        if (4 * _size > _slots.length) {
+            rehash(_slots.length);
         }
+        for (Index index : _indexes.values()) {
+            index.add(_size - 1);
+        }
+        return true;
     }
 
-    /** Write the contents of TABLE into the file NAME.db. Any I/O errors
-     *  cause a DBException. */
-    void writeTable(String name) {
-        PrintStream output;
-        output = null;
-        try {
-            String sep;
-            sep = ",";
-            output = new PrintStream(name + ".db");
-            output = output.append(_titles[0]);
-            if (_titles.length > 1) {
-                for (int i = 1; i < _titles.length; i++) {
-                    output = output.append(sep + _titles[i]);
+    /** Append the ROWS rows whose codes are given by COLUMNS, so that
+     *  COLUMNS[c][r] encodes the value in column c of the rth row.  The
+     *  caller guarantees that these rows are distinct from each other and
+     *  from my existing rows, so they are not checked for duplicates, and
+     *  the table for detecting duplicates is only rebuilt if and when
+     *  another row is added.  If THIS is empty, it may adopt the arrays in
+     *  COLUMNS, which the caller must not subsequently alter.  Should
+     *  some rows hold numbers that may equal others spelt differently,
+     *  they are all added one at a time instead, keeping only the first
+     *  of any that are equal. */
+    void addDistinct(int[][] columns, int rows) {
+        boolean distinct = true;
+        for (int c = 0; c < _columns.length; c += 1) {
+            if (_types[c] != Type.STRING) {
+                for (int row = 0; row < rows; row += 1) {
+                    int code = columns[c][row];
+                    check(c, code);
+                    distinct &= key(c, code) == code;
                 }
             }
-            output = output.append("\n");
-            Iterator rowIterator = _rows.iterator();
-            Row currentRow;
-            for (int i = 0; i < _rows.size(); i++) {
-                currentRow = (Row) rowIterator.next();
-                output = output.append(currentRow.get(0));
-                if (_titles.length > 1) {
-                    for (int j = 1; j < _titles.length; j++) {
-                        output = output.append(sep + currentRow.get(j));
-                    }
+        }
+        if (!distinct) {
+            int[] codes = new int[_columns.length];
+            for (int row = 0; row < rows; row += 1) {
+                for (int c = 0; c < codes.length; c += 1) {
+                    codes[c] = columns[c][row];
                 }
-                output = output.append("\n");
+                addCheckedCodes(codes);
             }
-            output.close();
+            return;
+        }
+        if (_size == 0 && columns.length > 0 && columns[0].length >= rows) {
+            _columns = columns.clone();
+        } else {
+            reserve(_size + rows);
+            for (int c = 0; c < _columns.length; c += 1) {
+                System.arraycopy(columns[c], 0, _columns[c], _size, rows);
+            }
+        }
+        for (int c = 0; c < _columns.length; c += 1) {
+            for (int row = _size; row < _size + rows; row += 1) {
+                _statistics[c].add(_columns[c][row]);
+            }
+        }
+        _size += rows;
+        _version = 0;
+        _slots = null;
+        _sortedBy = Collections.emptyList();
+        for (Index index : _indexes.values()) {
+            for (int row = _size - rows; row < _size; row += 1) {
+                index.add(row);
+            }
+        }
+    }
 
-        } catch (IOException e) {
-            throw error("trouble writing to %s.db", name);
-        } finally {
-            if (output != null) {
-                output.close();
+    /** Check that column number C may hold the value encoded by CODE. */
+    private void check(int c, int code) {
+        if (_types[c] != Type.STRING
+            && !_types[c].accepts(_dict.kind(code))) {
+            throw error("'%s' is not a valid %s value for column %s",
+                        _dict.get(code), _types[c], _titles[c]);
+        }
+    }
+
+    /** Return the code by which CODE is compared in column number C:
+     *  that of its representative as a value of the column's type (see
+     *  ValueDictionary.representative), so that rows differing only in
+     *  the spelling of equal numbers are the same. */
+    private int key(int c, int code) {
+        return _dict.representative(code, _types[c]);
+    }
+
+    /** Return a hash of the row encoded by CODES, as it is compared. */
+    private int hash(int[] codes) {
+        int h = 0;
+        for (int c = 0; c < codes.length; c += 1) {
+            h = 31 * h + key(c, codes[c]);
+        }
+        return ValueDictionary.mix(h);
+    }
+
+    /** Return true iff the row encoded by CODES comes before my last row
+     *  in the order of the columns _sortedBy. */
+    private boolean precedesLast(int[] codes) {
+        for (String title : _sortedBy) {
+            int c = findColumn(title);
+            int comparison = _types[c].compare(_dict, codes[c], _dict,
+                                               _columns[c][_size - 1]);
+            if (comparison != 0) {
+                return comparison < 0;
             }
         }
+        return false;
     }
 
-    /** Print my contents on the standard output. */
-    void print() {
-        Iterator rowIterator = iterator();
-        Row toBePrinted;
-        while (rowIterator.hasNext()) {
-            toBePrinted = (Row) rowIterator.next();
-            System.out.print("  ");
-            for (int i = 0; i < toBePrinted.size(); i++) {
-                System.out.print(toBePrinted.get(i) + " ");
+    /** Return true iff row number ROW equals the row encoded by CODES,
+     *  as rows are compared. */
+    private boolean sameRow(int row, int[] codes) {
+        for (int c = 0; c < codes.length; c += 1) {
+            if (key(c, _columns[c][row]) != key(c, codes[c])) {
+                return false;
             }
-            System.out.println();
         }
+        return true;
     }
 
-    /** Return a new Table whose columns are COLUMNNAMES, selected from
-     *  rows of this table that satisfy CONDITIONS. */
-    Table select(List<String> columnNames, List<Condition> conditions) {
-        Table result = new Table(columnNames);
+    /** Ensure that THIS has room for at least ROWS rows. */
+    private void reserve(int rows) {
+        if (_columns.length == 0 || rows <= _columns[0].length) {
+            return;
+        }
+        int capacity = Math.max(rows, 2 * _columns[0].length);
+        for (int c = 0; c < _columns.length; c += 1) {
+            _columns[c] = Arrays.copyOf(_columns[c], capacity);
+        }
+        if (_slots != null && 4 * rows > _slots.length) {
+            rehash(Integer.highestOneBit(2 * rows - 1) << 1);
+        }
+    }
 
-        Iterator columnIterator = columnNames.iterator();
-        Iterator rowIterator = _rows.iterator();
-        ArrayList<Column> columns = new ArrayList<Column>();
+    /** Rebuild _slots with SLOTS slots, a power of 2. */
+    private void rehash(int slots) {
+        int[] old = _slots;
+        _slots = new int[2 * slots];
+        int mask = _slots.length - 1;
+        for (int k = 0; k < old.length; k += 2) {
+            if (old[k] != 0) {
+                int s = (old[k + 1] << 1) & mask;
+                while (_slots[s] != 0) {
+                    s = (s + 2) & mask;
+                }
+                _slots[s] = old[k];
+                _slots[s + 1] = old[k + 1];
+            }
+        }
+    }
+
+    /** Build _slots afresh from my rows. */
+    private void rebuildSlots() {
+        int slots = Integer.highestOneBit(Math.max(2 * _size,
+                                                   INITIAL_ROWS) - 1) << 1;
+        _slots = new int[2 * slots];
+        int mask = _slots.length - 1;
+        int[] codes = new int[_columns.length];
+        for (int row = 0; row < _size; row += 1) {
+            for (int c = 0; c < codes.length; c += 1) {
+                codes[c] = _columns[c][row];
+            }
+            int hash = hash(codes);
+            int s = (hash << 1) & mask;
+            while (_slots[s] != 0) {
+                s = (s + 2) & mask;
+            }
+            _slots[s] = row + 1;
+            _slots[s + 1] = hash;
+        }
+    }
 
-        while (columnIterator.hasNext()) {
-            columns.add(new Column((String) columnIterator.next(), this));
+    /** Create an index named NAME on my columns named COLUMNNAMES, most
+     *  significant first, covering all my current and future rows. */
+    void createIndex(String name, List<String> columnNames) {
+        if (_indexes.containsKey(name)) {
+            throw error("duplicate index name: %s", name);
+        }
+        Index index = new Index(name, this, columnNames);
+        for (int row = 0; row < _size; row += 1) {
+            index.add(row);
         }
+        _indexes.put(name, index);
+    }
 
-        Row evaluatedRow;
-        Row selectedRow;
+    /** Return my indexes, in order of creation. */
+    Collection<Index> indexes() {
+        return _indexes.values();
+    }
 
-        for (int i = 0; i < _rows.size(); i++) {
-            evaluatedRow = (Row) rowIterator.next();
-            selectedRow = new Row(columns, evaluatedRow);
-            if (conditions.size() > 0) {
-                if (Condition.test(conditions, evaluatedRow)) {
-                    result.add(selectedRow);
-                }
-            } else {
-                result.add(selectedRow);
+    /** Read the contents of the file NAME.db, and return as a Table.
+     *  Format errors in the .db file cause a DBException. */
+    static Table readTable(String name) {
+        return readTable(name, new ValueDictionary());
+    }
+
+    /** Read the contents of the file NAME.db, and return as a Table whose
+     *  values are encoded by DICTIONARY.  Format errors in the .db file
+     *  cause a DBException. */
+    static Table readTable(String name, ValueDictionary dictionary) {
+        return new TableReader(name, dictionary).readMapped();
+    }
+
+    /** Read the contents of the binary file NAME.dbb, and return as a
+     *  Table whose values are encoded by DICTIONARY.  Format errors in the
+     *  file cause a DBException. */
+    static Table readBinaryTable(String name, ValueDictionary dictionary) {
+        return new TableReader(name, dictionary).readBinary();
+    }
+
+    /** Write the contents of TABLE into the file NAME.db. Any I/O errors
+     *  cause a DBException. */
+    void writeTable(String name) {
+        new TableWriter(name).write(this);
+    }
+
+    /** Write the contents of TABLE into the binary file NAME.dbb. Any I/O
+     *  errors cause a DBException. */
+    void writeBinaryTable(String name) {
+        new TableWriter(name).writeBinary(this);
+    }
+
+    /** Print my contents on the standard output. */
+    void print() {
+        print(System.out);
+    }
+
+    /** Print my contents on OUT. */
+    void print(PrintStream out) {
+        StringBuilder line = new StringBuilder();
+        for (int row = 0; row < _size; row += 1) {
+            line.setLength(0);
+            line.append("  ");
+            for (int c = 0; c < _columns.length; c += 1) {
+                line.append(_dict.get(_columns[c][row])).append(' ');
             }
+            out.println(line);
         }
+    }
 
-        return result;
+    /** Return a new Table whose columns are COLUMNNAMES, selected from
+     *  rows of this table that satisfy CONDITIONS. */
+    Table select(List<String> columnNames, List<Condition> conditions) {
+        return select(columnNames, conditions, false);
+    }
+
+    /** Return a new Table as for select(COLUMNNAMES, CONDITIONS), whose
+     *  rows are selected in parallel if PARALLEL and I am large enough
+     *  (see Planner.PARALLEL_ROWS). */
+    Table select(List<String> columnNames, List<Condition> conditions,
+                 boolean parallel) {
+        return collect(selectPlan(columnNames, conditions, parallel));
     }
 
     /** Return a new Table whose columns are COLUMNNAMES, selected
      *  from pairs of rows from this table and from TABLE2 that match
-     *  on all columns with identical names and satisfy CONDITIONS. */
+     *  on all columns with identical names and satisfy CONDITIONS, whose
+     *  columns are selected from THIS and TABLE2, in that order. */
     Table select(Table table2, List<String> columnNames,
                  List<Condition> conditions) {
-        Table innerJoin = findInnerJoin(table2);
-        Table result = innerJoin.select(columnNames, conditions);
-        return result;
+        return collect(selectPlan(table2, columnNames, conditions));
     }
 
-    /** Return the inner join of THIS and TABLE2. */
-    Table findInnerJoin(Table table2) {
-        ArrayList<String> matchingTitles = new ArrayList<String>();
-        Table results;
-        for (int i = 0; i < _titles.length; i++) {
-            for (int j = 0; j < table2._titles.length; j++) {
-                if (_titles[i].equals(table2._titles[j])) {
-                    matchingTitles.add(_titles[i]);
-                }
-            }
+    /** Return a pipeline that produces the values of the columns
+     *  COLUMNNAMES of my rows that satisfy CONDITIONS, encoded by my
+     *  dictionary. */
+    Operator.Output selectPlan(List<String> columnNames,
+                               List<Condition> conditions) {
+        return selectPlan(columnNames, conditions, false);
+    }
+
+    /** Return a pipeline as for selectPlan(COLUMNNAMES, CONDITIONS) that
+     *  scans my rows in parallel if PARALLEL and I am large enough. */
+    Operator.Output selectPlan(List<String> columnNames,
+                               List<Condition> conditions,
+                               boolean parallel) {
+        return Planner.plan(new Table[] { this }, columnNames, conditions,
+                            parallel);
+    }
+
+    /** Return a pipeline that produces the values of the columns
+     *  COLUMNNAMES of the pairs of rows from this table and from TABLE2
+     *  that match on all columns with identical names and satisfy
+     *  CONDITIONS, encoded by my dictionary. */
+    Operator.Output selectPlan(Table table2, List<String> columnNames,
+                               List<Condition> conditions) {
+        return Planner.plan(new Table[] { this, table2 }, columnNames,
+                            conditions);
+    }
+
+    /** Return a new Table holding the distinct tuples produced by PLAN,
+     *  which is known to be sorted by the columns that PLAN is ordered
+     *  by, closing PLAN. */
+    static Table collect(Operator.Output plan) {
+        Table result =
+            new Table(plan.titles(), plan.types(), plan.dictionary());
+        try {
+            plan.addTo(result);
+        } finally {
+            plan.close();
         }
-        int matches = matchingTitles.size();
-        Iterator matchTitlesIterator = matchingTitles.iterator();
-        ArrayList<Column> common1 = new ArrayList<Column>();
-        ArrayList<Column> common2 = new ArrayList<Column>();
+        result._sortedBy = new ArrayList<String>(plan.ordering());
+        return result;
+    }
 
-        if (matchingTitles.size() == 0) {
-            return cartesianProduct(table2);
-        } else {
-            String matchedTitle;
-            ArrayList<Column> allColumns = new ArrayList<Column>();
-            for (int i = 0; i < _titles.length; i++) {
-                allColumns.add(new Column(_titles[i], this, table2));
-            }
-            for (int i = 0; i < table2._titles.length; i++) {
-                if (!matchingTitles.contains(table2._titles[i])) {
-                    allColumns.add(new Column(table2._titles[i], this, table2));
-                }
-            }
-            int comboSize = allColumns.size();
-            String[] columnTitles = new String[comboSize];
-            Iterator columnIterator = allColumns.iterator();
+    /** Return the titles of columns in increasing order of whose values my
+     *  rows are known to be numbered, most significant first.  This is
+     *  known only of a table built from an ordered select, and only until
+     *  a row out of that order is added. */
+    List<String> sortedBy() {
+        return _sortedBy;
+    }
 
-            for (int i = 0; columnIterator.hasNext(); i++) {
-                columnTitles[i] = ((Column) columnIterator.next()).getName();
-            }
-            Table result = new Table(columnTitles);
+    /** Return an Operator that produces, in ROWS[WHICH], the numbers of
+     *  my rows that satisfy CONDITIONS, whose columns are selected from
+     *  TABLES, of which I am the WHICHth, and all belong to me.  Only the
+     *  rows found by whichever of my indexes narrows the search most for
+     *  CONDITIONS, if any, are examined.  NAME is my name, for describing
+     *  the result. */
+    Operator scan(Table[] tables, int[] rows, int which,
+                  List<Condition> conditions, String name) {
+        Operator scan = access(rows, which, conditions, name);
+        if (conditions.isEmpty()) {
+            return scan;
+        }
+        return new Operator.Filter(scan, tables, conditions);
+    }
 
-            for (int i = 0; i < matches; i++) {
-                matchedTitle = (String) matchTitlesIterator.next();
-                common1.add(new Column(matchedTitle, this));
-                common2.add(new Column(matchedTitle, table2));
+    /** Return a Scan that produces, in ROWS[WHICH], the numbers of the
+     *  rows found by whichever of my indexes narrows the search most for
+     *  CONDITIONS, or of all my rows if none does: the rows that scan
+     *  examines, before CONDITIONS are tested. */
+    Operator.Scan access(int[] rows, int which, List<Condition> conditions,
+                         String name) {
+        Index best = null;
+        IntList candidates = null;
+        for (Index index : _indexes.values()) {
+            IntList found = index.find(conditions, which);
+            if (found != null
+                && (candidates == null || found.size() < candidates.size())) {
+                best = index;
+                candidates = found;
             }
+        }
+        return new Operator.Scan(rows, which, this, candidates,
+                                 best == null ? "Scan " + name
+                                 : "Scan " + name + " using index "
+                                 + best.getName());
+    }
 
-            Row tempRow1;
-            Row tempRow2;
-            Iterator t1Iterator = _rows.iterator();
-            Iterator t2Iterator;
-            for (int i = 0; i < _rows.size(); i++) {
-                t2Iterator = table2._rows.iterator();
-                tempRow1 = (Row) t1Iterator.next();
-                for (int j = 0; j < table2._rows.size(); j++) {
-                    tempRow2 = (Row) t2Iterator.next();
-                    if (Table.equijoin(common1, common2, tempRow1, tempRow2)) {
-                        result.add(new Row(allColumns, tempRow1, tempRow2));
-                    }
-                }
+    /** Return the titles of my columns that TABLE2 also has. */
+    private List<String> commonTitles(Table table2) {
+        ArrayList<String> matchingTitles = new ArrayList<String>();
+        for (int i = 0; i < _titles.length; i++) {
+            if (table2.findColumn(_titles[i]) != -1) {
+                matchingTitles.add(_titles[i]);
             }
-            return result;
         }
+        return matchingTitles;
     }
 
-    /** Return true if the columns COMMON1 from ROW1 and COMMON2 from
-     *  ROW2 all have identical values.  Assumes that COMMON1 and
-     *  COMMON2 have the same number of elements and the same names,
-     *  that the columns in COMMON1 apply to this table, those in
-     *  COMMON2 to another, and that ROW1 and ROW2 come, respectively,
-     *  from those tables. */
-    private static boolean equijoin(List<Column> common1, List<Column> common2,
-                                    Row row1, Row row2) {
-
-        Iterator c1Iterator = common1.iterator();
-        Iterator c2Iterator = common2.iterator();
-        String comp1;
-        String comp2;
+    /** Return the inner join of THIS and TABLE2: a natural join on all
+     *  columns with identical names, or the cartesian product if there are
+     *  none.  When both tables are known to be sorted by their common
+     *  columns, their rows are merged in order; otherwise they are matched
+     *  through a hash table. */
+    Table findInnerJoin(Table table2) {
+        List<String> common = commonTitles(table2);
+        int k = common.size();
+        if (k > 0 && _sortedBy.size() >= k
+            && table2._sortedBy.size() >= k) {
+            List<String> keys = _sortedBy.subList(0, k);
+            if (keys.equals(table2._sortedBy.subList(0, k))
+                && keys.containsAll(common) && sameTypes(table2, keys)) {
+                return mergeJoin(table2, keys);
+            }
+        }
+        return hashJoin(table2, common);
+    }
 
-        for (int i = 0; i < common1.size(); i++) {
-            comp1 = ((Column) c1Iterator.next()).getFrom(row1);
-            comp2 = ((Column) c2Iterator.next()).getFrom(row2);
-            if (!comp1.equals(comp2)) {
+    /** Return true iff my columns TITLES have the same types as those of
+     *  TABLE2. */
+    private boolean sameTypes(Table table2, List<String> titles) {
+        for (String title : titles) {
+            if (_types[findColumn(title)]
+                != table2._types[table2.findColumn(title)]) {
                 return false;
             }
         }
-
         return true;
     }
 
-    /** Returns the cartesian product of two tables THIS and TABLE2. */
-    private Table cartesianProduct(Table table2) {
-        String[] cpTitles = new String[_titles.length + table2._titles.length];
-        for (int i = 0; i < cpTitles.length; i++) {
-            if (i < _titles.length) {
-                cpTitles[i] = _titles[i];
-            } else {
-                cpTitles[i] = table2._titles[i - _titles.length];
-            }
-        }
-        Table cartProd = new Table(cpTitles);
-        ArrayList<Column> columns = new ArrayList<Column>();
-        for (int i = 0; i < cpTitles.length; i++) {
-            columns.add(new Column(cpTitles[i], this, table2));
-        }
+    /** Return the natural join of THIS and TABLE2 on the columns named
+     *  COMMONTITLES, which both tables must have.  With no common
+     *  columns, this is the cartesian product.  The columns of the result
+     *  are those of THIS followed by those of TABLE2 that are not in
+     *  COMMONTITLES, and the result shares my dictionary. */
+    Table hashJoin(Table table2, List<String> commonTitles) {
+        Table[] tables = { this, table2 };
+        int[] rows = new int[2];
+        List<Condition> none = Collections.emptyList();
+        Operator join =
+            new Operator.HashJoin(tables, scan(tables, rows, 0, none, "left"),
+                                  new int[] { 0 },
+                                  table2.scan(tables, rows, 1, none, "right"),
+                                  new int[] { 1 }, commonTitles);
+        return joinResult(tables, commonTitles, join);
+    }
 
-        Row tempRow1;
-        Row tempRow2;
-        Iterator t1Iterator = _rows.iterator();
-        Iterator t2Iterator;
+    /** Return the natural join of THIS and TABLE2 on the columns KEYS,
+     *  as for hashJoin, where both tables are sorted by KEYS, so that
+     *  their rows may be merged in order.  The result is also sorted by
+     *  KEYS. */
+    Table mergeJoin(Table table2, List<String> keys) {
+        Table[] tables = { this, table2 };
+        int[] rows = new int[2];
+        List<Condition> none = Collections.emptyList();
+        Operator join =
+            new Operator.MergeJoin(tables,
+                                   scan(tables, rows, 0, none, "left"), 0,
+                                   table2.scan(tables, rows, 1, none,
+                                               "right"), 1,
+                                   keys);
+        Table result = joinResult(tables, keys, join);
+        result._sortedBy = new ArrayList<String>(keys);
+        return result;
+    }
 
-        for (int i = 0; i < _rows.size(); i++) {
-            tempRow1 = (Row) t1Iterator.next();
-            t2Iterator = table2._rows.iterator();
-            for (int j = 0; j < table2._rows.size(); j++) {
-                tempRow2 = (Row) t2Iterator.next();
-                cartProd.add(new Row(columns, tempRow1, tempRow2));
+    /** Return the table of the rows of the natural join of TABLES, a
+     *  pair of tables, on the columns COMMONTITLES, whose pairs of row
+     *  numbers are produced by JOIN.  Its columns are those of TABLES[0]
+     *  followed by those of TABLES[1] that are not in COMMONTITLES. */
+    private Table joinResult(Table[] tables, List<String> commonTitles,
+                             Operator join) {
+        ArrayList<String> columnTitles = new ArrayList<String>();
+        ArrayList<Column> columns = new ArrayList<Column>();
+        for (String title : _titles) {
+            columnTitles.add(title);
+            columns.add(new Column(title, tables));
+        }
+        for (String title : tables[1]._titles) {
+            if (!commonTitles.contains(title)) {
+                columnTitles.add(title);
+                columns.add(new Column(title, tables));
             }
-
         }
-        return cartProd;
+        return collect(new Operator.Project(join, tables,
+                                            columns.toArray(new Column[0]),
+                                            columnTitles, _dict));
     }
 
-    /** My rows. */
-    private HashSet<Row> _rows = new HashSet<>();
+    /** Initial number of rows for which space is reserved. */
+    private static final int INITIAL_ROWS = 16;
+    /** The last version given to any table (see version). */
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
     /** Titles of columns. */
     private String[] _titles;
+    /** Types of columns. */
+    private Type[] _types;
+    /** Dictionary encoding my values. */
+    private ValueDictionary _dict;
+    /** My values by column: _columns[c][r] is the code of the value in
+     *  column c of row number r. */
+    private int[][] _columns;
+    /** Number of rows in THIS. */
+    private int _size;
+    /** My version (see version), or 0 if I have changed since it was
+     *  last asked for. */
+    private long _version;
+    /** Open-addressed hash table of row numbers, for detecting duplicate
+     *  rows.  Each slot is a pair of elements: a row number plus one (so
+     *  that 0 marks an empty slot) followed by the hash of the row's
+     *  codes.  Always at most half full.  Null after addDistinct until
+     *  it is next needed. */
+    private int[] _slots;
+    /** Titles of the columns by which my rows are known to be sorted. */
+    private List<String> _sortedBy = Collections.emptyList();
+    /** Statistics on each of my columns. */
+    private ColumnStatistics[] _statistics;
+    /** My indexes, by name. */
+    private LinkedHashMap<String, Index> _indexes = new LinkedHashMap<>();
 }
-
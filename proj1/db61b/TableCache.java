@@ -0,0 +1,176 @@
+package db61b;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/** A collection of named tables that are read from files only when first
+ *  needed.  The tables read are kept within a memory budget: when
+ *  reading one takes the total estimated size of those present (see
+ *  Table.memory) over the budget, the least recently used others are
+ *  dropped, to be read again if they are needed again.  Since a dropped
+ *  table is simply read again, the tables kept here must not be changed;
+ *  a table that is to be changed is taken out first.
+ *  @author Adam Shi
+ */
+class TableCache {
+
+    /** Add a table named NAME, replacing any previous one, whose contents
+     *  SOURCE reads when needed. */
+    void register(String name, Supplier<Table> source) {
+        Entry old = _entries.put(name, new Entry(source));
+        if (old != null) {
+            forget(old);
+        }
+    }
+
+    /** Return true iff I have a table named NAME. */
+    boolean contains(String name) {
+        return _entries.containsKey(name);
+    }
+
+    /** Return the names of my tables. */
+    Set<String> names() {
+        return _entries.keySet();
+    }
+
+    /** Return my table named NAME, reading it if need be, or null if I
+     *  have none. */
+    Table get(String name) {
+        Entry entry = _entries.get(name);
+        if (entry == null) {
+            return null;
+        }
+        Table table = entry.table();
+        evict();
+        return table;
+    }
+
+    /** Remove my table named NAME, if any, returning it, read if need
+     *  be, or null if I had none. */
+    Table take(String name) {
+        Entry entry = _entries.remove(name);
+        if (entry == null) {
+            return null;
+        }
+        Table table = entry.table();
+        forget(entry);
+        return table;
+    }
+
+    /** Remove my table named NAME, if any, without reading it. */
+    void remove(String name) {
+        Entry entry = _entries.remove(name);
+        if (entry != null) {
+            forget(entry);
+        }
+    }
+
+    /** Set the memory budget to BYTES. */
+    void setBudget(long bytes) {
+        synchronized (_recent) {
+            _budget = bytes;
+        }
+        evict();
+    }
+
+    /** Return the estimated number of bytes held by the tables I have
+     *  read and not dropped. */
+    long resident() {
+        synchronized (_recent) {
+            return _resident;
+        }
+    }
+
+    /** Drop the least recently used tables until those present fit my
+     *  budget, or only one is left.  No Entry is locked while victims
+     *  are chosen, and _recent is not locked while they are dropped, so
+     *  that this cannot deadlock with Entry.table. */
+    private void evict() {
+        List<Entry> victims = new ArrayList<>();
+        synchronized (_recent) {
+            Iterator<Entry> eldest = _recent.keySet().iterator();
+            while (_resident > _budget && _recent.size() > 1) {
+                Entry victim = eldest.next();
+                eldest.remove();
+                _resident -= victim._bytes;
+                victims.add(victim);
+            }
+        }
+        for (Entry victim : victims) {
+            victim.drop();
+        }
+    }
+
+    /** Stop accounting for ENTRY, which has been removed. */
+    private void forget(Entry entry) {
+        synchronized (_recent) {
+            if (_recent.remove(entry) != null) {
+                _resident -= entry._bytes;
+            }
+        }
+    }
+
+    /** A table read when needed. */
+    private class Entry {
+        /** An entry whose table SOURCE reads. */
+        Entry(Supplier<Table> source) {
+            _source = source;
+        }
+
+        /** Return my table, reading it if it is not present, and mark it
+         *  as most recently used. */
+        synchronized Table table() {
+            synchronized (_recent) {
+                if (_table != null && _recent.get(this) != null) {
+                    return _table;
+                }
+            }
+            if (_table == null) {
+                _table = _source.get();
+                _bytes = _table.memory();
+            }
+            synchronized (_recent) {
+                if (_recent.put(this, Boolean.TRUE) == null) {
+                    _resident += _bytes;
+                }
+            }
+            return _table;
+        }
+
+        /** Drop my table, if present, once any read in progress is
+         *  done. */
+        synchronized void drop() {
+            synchronized (_recent) {
+                if (!_recent.containsKey(this)) {
+                    _table = null;
+                }
+            }
+        }
+
+        /** Reads my table. */
+        private final Supplier<Table> _source;
+        /** My table, or null if it is not present. */
+        private Table _table;
+        /** Estimated size of _table in bytes, when it was read. */
+        private long _bytes;
+    }
+
+    /** My tables, by name. */
+    private final ConcurrentHashMap<String, Entry> _entries =
+        new ConcurrentHashMap<>();
+    /** The entries whose tables are present and accounted for in
+     *  _resident, least recently used first.  Also guards _resident and
+     *  _budget. */
+    private final LinkedHashMap<Entry, Boolean> _recent =
+        new LinkedHashMap<>(16, 0.75f, true);
+    /** Total estimated size of the tables in _recent, in bytes. */
+    private long _resident;
+    /** Largest value of _resident allowed, unless only one table is
+     *  present. */
+    private long _budget = Long.MAX_VALUE;
+}
@@ -0,0 +1,513 @@
+package db61b;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static db61b.Utils.*;
+
+/** Reads a Table from a .db file: a header line of comma-separated column
+ *  headings (titles, each followed by :int or :double if the column has
+ *  that type) followed by one line of comma-separated values per row.  Rows
+ *  with the wrong number of values are ignored.  Also reads the binary
+ *  .dbb files produced by TableWriter, which hold, in big-endian order,
+ *  the int BINARY_MAGIC, the int BINARY_VERSION, the number of columns,
+ *  the column headings, and the number of rows, followed by each column in
+ *  turn: the number of distinct values in the column, those values, the
+ *  width in bytes (1, 2, or 4) of the column's codes as a single byte,
+ *  and then one code of that width per row, each indexing the column's
+ *  values.  Strings are stored as an int length followed by that many
+ *  bytes of UTF-8.  Records the size of the file and the time taken so
+ *  that loading methods may be compared.
+ *  @author Adam Shi
+ */
+class TableReader {
+
+    /** A reader for the file NAME.db or NAME.dbb that encodes values with
+     *  DICTIONARY. */
+    TableReader(String name, ValueDictionary dictionary) {
+        _name = name;
+        _dict = dictionary;
+    }
+
+    /** Read my file line by line through a BufferedReader, splitting each
+     *  line into a new String per value, and return its contents. */
+    Table readBuffered() {
+        long start = System.nanoTime();
+        BufferedReader input;
+        input = null;
+        try {
+            input = new BufferedReader(new FileReader(_name + ".db", UTF_8));
+            String header = input.readLine();
+            if (header == null) {
+                throw error("missing header in DB file");
+            }
+            String[] columnNames = header.split(",");
+            Table table = Table.withHeadings(columnNames, _dict);
+            int[] codes = new int[columnNames.length];
+            String newRowData = input.readLine();
+            while (newRowData != null) {
+                String[] values = newRowData.split(",");
+                if (values.length == codes.length) {
+                    for (int c = 0; c < codes.length; c += 1) {
+                        codes[c] = _dict.encode(values[c]);
+                    }
+                    table.addCodes(codes);
+                }
+                newRowData = input.readLine();
+            }
+            _bytes = new File(_name + ".db").length();
+            return finish(table, start);
+        } catch (FileNotFoundException e) {
+            throw error("could not find %s.db", _name);
+        } catch (IOException e) {
+            throw error("problem reading from %s.db", _name);
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    /* Ignore IOException */
+                }
+            }
+        }
+    }
+
+    /** Read my file by mapping it into memory and parsing its bytes in
+     *  place, and return its contents.  Values are looked up in the
+     *  dictionary straight from the mapped bytes, so that no String is
+     *  created for a value the dictionary already holds.  Files larger
+     *  than MAX_WINDOW bytes are mapped a window at a time. */
+    Table readMapped() {
+        long start = System.nanoTime();
+        try (FileChannel channel = open(".db")) {
+            long size = channel.size();
+            Table table = Table.withHeadings(readHeader(channel), _dict);
+            long pos = _dataStart;
+            while (pos < size) {
+                int len = (int) Math.min(size - pos, MAX_WINDOW);
+                boolean last = pos + len == size;
+                int end = parseRows(map(channel, pos, len), 0, len, last,
+                                    table);
+                if (end == 0) {
+                    throw error("line too long in %s.db", _name);
+                }
+                pos += end;
+            }
+            _bytes = size;
+            return finish(table, start);
+        } catch (IOException e) {
+            throw error("problem reading from %s.db", _name);
+        }
+    }
+
+    /** Read my file as for readMapped, but split the rows into chunks of
+     *  whole lines that are parsed concurrently on a fork-join pool, each
+     *  into a table with its own dictionary.  The chunks' rows are then
+     *  recoded and added to the result in file order, so that duplicates
+     *  are removed exactly as by a sequential read. */
+    Table readParallel() {
+        long start = System.nanoTime();
+        try (FileChannel channel = open(".db")) {
+            long size = channel.size();
+            String[] titles = readHeader(channel);
+            long dataStart = _dataStart;
+            int chunks = (int) Math.max((size - dataStart) / MAX_WINDOW + 1,
+                                        Math.min(CHUNKS_PER_THREAD
+                                                 * POOL.getParallelism(),
+                                                 (size - dataStart)
+                                                 / MIN_CHUNK));
+            long[] bounds = new long[chunks + 1];
+            bounds[0] = dataStart;
+            for (int k = 1; k < chunks; k += 1) {
+                long target = dataStart + (size - dataStart) * k / chunks;
+                bounds[k] = nextLine(channel, Math.max(target,
+                                                       bounds[k - 1]));
+            }
+            bounds[chunks] = size;
+
+            ArrayList<Callable<Table>> tasks = new ArrayList<>();
+            for (int k = 0; k < chunks; k += 1) {
+                long from = bounds[k], to = bounds[k + 1];
+                if (to - from > MAX_WINDOW) {
+                    throw error("line too long in %s.db", _name);
+                }
+                tasks.add(() -> {
+                    Table part = Table.withHeadings(titles,
+                                                    new ValueDictionary());
+                    int len = (int) (to - from);
+                    new TableReader(_name, part.dictionary())
+                        .parseRows(map(channel, from, len), 0, len, true,
+                                   part);
+                    return part;
+                });
+            }
+
+            Table table = Table.withHeadings(titles, _dict);
+            int[] codes = new int[titles.length];
+            for (Future<Table> result : POOL.invokeAll(tasks)) {
+                Table part = result.get();
+                int[] recode = part.dictionary().codesIn(_dict);
+                for (int row = 0; row < part.size(); row += 1) {
+                    for (int c = 0; c < codes.length; c += 1) {
+                        codes[c] = recode[part.code(row, c)];
+                    }
+                    table.addCodes(codes);
+                }
+            }
+            _bytes = size;
+            return finish(table, start);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DBException) {
+                throw (DBException) e.getCause();
+            }
+            throw error("problem reading from %s.db", _name);
+        } catch (InterruptedException | IOException e) {
+            throw error("problem reading from %s.db", _name);
+        }
+    }
+
+    /** Read my binary .dbb file and return its contents.  Each column's
+     *  codes are copied in bulk from the mapped file and translated into
+     *  codes in my dictionary through a table built from the column's
+     *  values, so that no row is parsed and no value is looked up more
+     *  than once.  Since a stored table has no duplicate rows, none are
+     *  looked for. */
+    Table readBinary() {
+        long start = System.nanoTime();
+        try (FileChannel channel = open(".dbb")) {
+            _channel = channel;
+            _window = null;
+            _windowStart = 0;
+            if (getInt() != BINARY_MAGIC || getInt() != BINARY_VERSION) {
+                throw error("%s.dbb is not a binary table", _name);
+            }
+            String[] titles = new String[getInt()];
+            for (int c = 0; c < titles.length; c += 1) {
+                titles[c] = getString();
+            }
+            Table table = Table.withHeadings(titles, _dict);
+            int rows = getInt();
+            int[][] columns = new int[titles.length][];
+            for (int c = 0; c < titles.length; c += 1) {
+                int[] recode = new int[getInt()];
+                for (int k = 0; k < recode.length; k += 1) {
+                    recode[k] = _dict.encode(getString());
+                }
+                columns[c] = getCodes(rows, getByte(), recode);
+            }
+            table.addDistinct(columns, rows);
+            _bytes = channel.size();
+            return finish(table, start);
+        } catch (IOException e) {
+            throw error("problem reading from %s.dbb", _name);
+        } catch (IndexOutOfBoundsException | NegativeArraySizeException e) {
+            throw error("corrupt binary table in %s.dbb", _name);
+        } finally {
+            _channel = null;
+            _window = null;
+        }
+    }
+
+    /** Return true iff my table is stored only as a binary .dbb file. */
+    boolean binaryOnly() {
+        return !Files.exists(Paths.get(_name + ".db"))
+            && Files.exists(Paths.get(_name + ".dbb"));
+    }
+
+    /** Check that my file whose name ends in EXTENSION exists, as the
+     *  methods that read it would. */
+    void checkExists(String extension) {
+        if (!Files.exists(Paths.get(_name + extension))) {
+            throw error("could not find %s%s", _name, extension);
+        }
+    }
+
+    /** Return a channel for reading my file, whose name ends in
+     *  EXTENSION. */
+    private FileChannel open(String extension) throws IOException {
+        try {
+            return FileChannel.open(Paths.get(_name + extension));
+        } catch (NoSuchFileException e) {
+            throw error("could not find %s%s", _name, extension);
+        }
+    }
+
+    /** Make sure that at least N unread bytes of _channel are in _window,
+     *  mapping the next part of the file if necessary. */
+    private void need(int n) throws IOException {
+        if (_window != null && _window.remaining() >= n) {
+            return;
+        }
+        long pos = _window == null ? 0 : _windowStart + _window.position();
+        int len = (int) Math.min(_channel.size() - pos, MAX_WINDOW);
+        if (len < n) {
+            throw error("corrupt binary table in %s.dbb", _name);
+        }
+        _window = map(_channel, pos, len);
+        _windowStart = pos;
+    }
+
+    /** Return the next byte of my binary file. */
+    private int getByte() throws IOException {
+        need(1);
+        return _window.get();
+    }
+
+    /** Return the next int of my binary file. */
+    private int getInt() throws IOException {
+        need(4);
+        return _window.getInt();
+    }
+
+    /** Return the next string of my binary file. */
+    private String getString() throws IOException {
+        int len = getInt();
+        if (len < 0) {
+            throw error("corrupt binary table in %s.dbb", _name);
+        }
+        need(len);
+        int pos = _window.position();
+        _window.position(pos + len);
+        return ValueDictionary.decode(_window, pos, pos + len, UTF_8);
+    }
+
+    /** Return the next ROWS codes of my binary file, each WIDTH bytes
+     *  long, translated through RECODE. */
+    private int[] getCodes(int rows, int width, int[] recode)
+        throws IOException {
+        if (width != 1 && width != 2 && width != 4) {
+            throw error("corrupt binary table in %s.dbb", _name);
+        }
+        int[] codes = new int[rows];
+        int row = 0;
+        while (row < rows) {
+            need(width);
+            int n = Math.min(rows - row, _window.remaining() / width);
+            switch (width) {
+            case 1:
+                for (int k = row; k < row + n; k += 1) {
+                    codes[k] = _window.get() & 0xff;
+                }
+                break;
+            case 2:
+                for (int k = row; k < row + n; k += 1) {
+                    codes[k] = _window.getShort() & 0xffff;
+                }
+                break;
+            default:
+                _window.asIntBuffer().get(codes, row, n);
+                _window.position(_window.position() + 4 * n);
+                break;
+            }
+            row += n;
+        }
+        for (int k = 0; k < rows; k += 1) {
+            codes[k] = recode[codes[k]];
+        }
+        return codes;
+    }
+
+    /** Return a read-only mapping of the LEN bytes of CHANNEL starting at
+     *  position POS. */
+    private static MappedByteBuffer map(FileChannel channel, long pos,
+                                        int len) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, pos, len);
+    }
+
+    /** Read and return the column titles from the header line of
+     *  CHANNEL, and set _dataStart to the position of the line after it. */
+    private String[] readHeader(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size == 0) {
+            throw error("missing header in DB file");
+        }
+        int len = (int) Math.min(size, MAX_WINDOW);
+        MappedByteBuffer buf = map(channel, 0, len);
+        int eol = endOfLine(buf, 0, len);
+        if (eol == len && len < size) {
+            throw error("line too long in %s.db", _name);
+        }
+        _dataStart = eol + 1;
+        if (eol < len - 1 && buf.get(eol) == '\r'
+            && buf.get(eol + 1) == '\n') {
+            _dataStart += 1;
+        }
+        return ValueDictionary.decode(buf, 0, eol, UTF_8).split(",");
+    }
+
+    /** Return the position of the start of the first line that begins at
+     *  or after position POS of CHANNEL, or the size of CHANNEL if there
+     *  is none. */
+    private static long nextLine(FileChannel channel, long pos)
+        throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(SCAN_SIZE);
+        long size = channel.size();
+        pos = Math.max(pos - 1, 0);
+        while (pos < size) {
+            buf.clear();
+            int n = channel.read(buf, pos);
+            for (int i = 0; i < n; i += 1) {
+                if (buf.get(i) == '\n') {
+                    return pos + i + 1;
+                }
+            }
+            pos += n;
+        }
+        return size;
+    }
+
+    /** Add to TABLE the rows in the lines in positions START .. END - 1 of
+     *  BUF, where START begins a line, and return the position just after
+     *  the last line added.  Unless LAST, a line that is not terminated
+     *  before END might be incomplete, and is not added. */
+    private int parseRows(MappedByteBuffer buf, int start, int end,
+                          boolean last, Table table) {
+        int[] codes = new int[table.columns()];
+        int line = start;
+        while (line < end) {
+            int eol = parseRow(buf, line, end, codes);
+            if (!last && eol >= end - 1) {
+                break;
+            }
+            if (_valid) {
+                table.addCodes(codes);
+            }
+            line = eol + 1;
+            if (eol < end - 1 && buf.get(eol) == '\r'
+                && buf.get(eol + 1) == '\n') {
+                line += 1;
+            }
+        }
+        return line;
+    }
+
+    /** Return the position of the first end-of-line character ('\n' or
+     *  '\r') at or after START in BUF, or END if there is none before
+     *  END. */
+    private static int endOfLine(MappedByteBuffer buf, int start, int end) {
+        for (int i = start; i < end; i += 1) {
+            byte b = buf.get(i);
+            if (b == '\n' || b == '\r') {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    /** Parse the line that starts at position START of BUF and ends at
+     *  the next end-of-line character or at END, whichever comes first,
+     *  and return the position where it ends.  Set CODES to the codes of
+     *  its values and _valid to true if it has exactly CODES.length
+     *  values; otherwise set _valid to false.  As for String.split,
+     *  trailing empty values are not counted.  Makes a single pass over
+     *  the line, hashing each value as it goes. */
+    private int parseRow(MappedByteBuffer buf, int start, int end,
+                         int[] codes) {
+        int field, fieldStart, lastNonEmpty, h, i;
+        boolean ascii, tooMany;
+        field = lastNonEmpty = -1;
+        tooMany = false;
+        i = start - 1;
+        do {
+            i += 1;
+            field += 1;
+            fieldStart = i;
+            h = 0;
+            ascii = true;
+            byte b = 0;
+            while (i < end) {
+                b = buf.get(i);
+                if (b == ',' || b == '\n' || b == '\r') {
+                    break;
+                }
+                ascii &= b >= 0;
+                h = 31 * h + b;
+                i += 1;
+            }
+            if (i > fieldStart) {
+                lastNonEmpty = field;
+            }
+            if (field >= codes.length) {
+                tooMany |= i > fieldStart;
+            } else if (ascii) {
+                codes[field] = _dict.encode(buf, fieldStart, i, h);
+            } else {
+                codes[field] = _dict.encode(buf, fieldStart, i);
+            }
+        } while (i < end && buf.get(i) == ',');
+        _valid = !tooMany && (lastNonEmpty + 1 == codes.length
+                              || i == start && codes.length == 1);
+        return i;
+    }
+
+    /** Record the statistics for having read TABLE, starting at time
+     *  START (in nanoseconds), and return TABLE. */
+    private Table finish(Table table, long start) {
+        _nanos = System.nanoTime() - start;
+        _rows = table.size();
+        return table;
+    }
+
+    /** Return a description of the size and speed of the last read. */
+    String statistics() {
+        double millis = _nanos / 1e6;
+        double megabytes = _bytes / 1e6;
+        return format("%d rows, %d bytes in %.1f ms (%.1f MB/s)",
+                      _rows, _bytes, millis,
+                      millis == 0 ? 0.0 : megabytes / (millis / 1000));
+    }
+
+    /** First int of a binary table file. */
+    static final int BINARY_MAGIC = 0x44423631;
+    /** Version of the binary table format written by TableWriter. */
+    static final int BINARY_VERSION = 1;
+
+    /** Largest number of bytes mapped at once. */
+    static final int MAX_WINDOW = 1 << 30;
+    /** Smallest number of bytes worth parsing as a separate chunk. */
+    private static final long MIN_CHUNK = 1 << 20;
+    /** Number of chunks per thread into which readParallel divides a
+     *  file, so that threads that finish early can take up others' work. */
+    private static final int CHUNKS_PER_THREAD = 4;
+    /** Number of bytes read at a time while looking for a line end. */
+    private static final int SCAN_SIZE = 4096;
+    /** Pool on which chunks are parsed. */
+    private static final ForkJoinPool POOL = ForkJoinPool.commonPool();
+
+    /** Name of my file, less its extension. */
+    private String _name;
+    /** Dictionary for the values read. */
+    private ValueDictionary _dict;
+    /** Position in my file of the line following the header. */
+    private long _dataStart;
+    /** Channel for the binary file being read. */
+    private FileChannel _channel;
+    /** Mapped part of _channel, positioned at the next byte to read. */
+    private MappedByteBuffer _window;
+    /** Position in _channel of the start of _window. */
+    private long _windowStart;
+    /** True iff the last row parsed by parseRow had the right number of
+     *  values. */
+    private boolean _valid;
+    /** Size in bytes of the file last read. */
+    private long _bytes;
+    /** Number of rows in the table last read. */
+    private int _rows;
+    /** Time taken by the last read, in nanoseconds. */
+    private long _nanos;
+}
@@ -0,0 +1,240 @@
+package db61b;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static db61b.Utils.*;
+
+/** Writes a Table to a .db file or a binary .dbb file (see TableReader
+ *  for the formats).  Each distinct value is converted to bytes only
+ *  once, and the output is assembled in a large reusable buffer that is
+ *  handed to a FileChannel whenever it fills.  The file is written under
+ *  a temporary name and then renamed, so that a reader never sees a
+ *  partly written table and a failed store leaves any previous file
+ *  intact.  Records the size of the file and the time taken.
+ *  @author Adam Shi
+ */
+class TableWriter {
+
+    /** A writer for the file NAME.db or NAME.dbb. */
+    TableWriter(String name) {
+        _name = name;
+    }
+
+    /** Write TABLE to NAME.db, replacing any previous contents. */
+    void write(Table table) {
+        write(table, false);
+    }
+
+    /** Write TABLE to NAME.dbb, replacing any previous contents. */
+    void writeBinary(Table table) {
+        write(table, true);
+    }
+
+    /** Write TABLE to NAME.dbb if BINARY, and otherwise to NAME.db. */
+    private void write(Table table, boolean binary) {
+        long start = System.nanoTime();
+        String fileName = _name + (binary ? ".dbb" : ".db");
+        Path target = Paths.get(fileName).toAbsolutePath();
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(target.getParent(),
+                                        target.getFileName() + ".", ".tmp");
+            try (FileChannel channel = FileChannel.open(temp, WRITE)) {
+                _channel = channel;
+                _buffer.clear();
+                _bytes = 0;
+                if (binary) {
+                    writeColumns(table);
+                } else {
+                    writeRows(table);
+                }
+                flush();
+                channel.force(false);
+            } finally {
+                _channel = null;
+            }
+            try {
+                Files.move(temp, target, ATOMIC_MOVE, REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, REPLACE_EXISTING);
+            }
+            temp = null;
+        } catch (IOException e) {
+            throw error("trouble writing to %s", fileName);
+        } finally {
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException e) {
+                    /* Ignore IOException */
+                }
+            }
+        }
+        _rows = table.size();
+        _nanos = System.nanoTime() - start;
+    }
+
+    /** Write the header and rows of TABLE into _buffer, flushing as
+     *  needed. */
+    private void writeRows(Table table) throws IOException {
+        for (int c = 0; c < table.columns(); c += 1) {
+            if (c > 0) {
+                put((byte) ',');
+            }
+            put(table.getHeading(c).getBytes(UTF_8));
+        }
+        put((byte) '\n');
+
+        ValueDictionary dict = table.dictionary();
+        byte[][] encoded = new byte[dict.size()][];
+        for (int row = 0; row < table.size(); row += 1) {
+            for (int c = 0; c < table.columns(); c += 1) {
+                if (c > 0) {
+                    put((byte) ',');
+                }
+                int code = table.code(row, c);
+                if (encoded[code] == null) {
+                    encoded[code] = dict.get(code).getBytes(UTF_8);
+                }
+                put(encoded[code]);
+            }
+            put((byte) '\n');
+        }
+    }
+
+    /** Write the header and columns of TABLE in binary form into
+     *  _buffer, flushing as needed.  Each column gets a dictionary of
+     *  just the values it holds, numbered in order of first appearance,
+     *  so that its codes fit in as few bytes as possible. */
+    private void writeColumns(Table table) throws IOException {
+        ValueDictionary dict = table.dictionary();
+        putInt(TableReader.BINARY_MAGIC);
+        putInt(TableReader.BINARY_VERSION);
+        putInt(table.columns());
+        for (int c = 0; c < table.columns(); c += 1) {
+            putString(table.getHeading(c));
+        }
+        putInt(table.size());
+
+        int[] local = new int[dict.size()];
+        for (int c = 0; c < table.columns(); c += 1) {
+            Arrays.fill(local, -1);
+            IntList values = new IntList();
+            for (int row = 0; row < table.size(); row += 1) {
+                int code = table.code(row, c);
+                if (local[code] < 0) {
+                    local[code] = values.size();
+                    values.add(code);
+                }
+            }
+            putInt(values.size());
+            for (int k = 0; k < values.size(); k += 1) {
+                putString(dict.get(values.get(k)));
+            }
+            int width = values.size() <= 1 << 8 ? 1
+                : values.size() <= 1 << 16 ? 2 : 4;
+            put((byte) width);
+            for (int row = 0; row < table.size(); row += 1) {
+                if (_buffer.remaining() < width) {
+                    flush();
+                }
+                int code = local[table.code(row, c)];
+                switch (width) {
+                case 1:
+                    _buffer.put((byte) code);
+                    break;
+                case 2:
+                    _buffer.putShort((short) code);
+                    break;
+                default:
+                    _buffer.putInt(code);
+                    break;
+                }
+            }
+        }
+    }
+
+    /** Append VALUE to the output as four bytes, high-order first. */
+    private void putInt(int value) throws IOException {
+        if (_buffer.remaining() < 4) {
+            flush();
+        }
+        _buffer.putInt(value);
+    }
+
+    /** Append the length of the UTF-8 encoding of VALUE followed by the
+     *  encoding itself to the output. */
+    private void putString(String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+        putInt(bytes.length);
+        put(bytes);
+    }
+
+    /** Append B to the output. */
+    private void put(byte b) throws IOException {
+        if (!_buffer.hasRemaining()) {
+            flush();
+        }
+        _buffer.put(b);
+    }
+
+    /** Append BYTES to the output. */
+    private void put(byte[] bytes) throws IOException {
+        if (bytes.length > _buffer.remaining()) {
+            flush();
+            if (bytes.length > _buffer.remaining()) {
+                ByteBuffer whole = ByteBuffer.wrap(bytes);
+                while (whole.hasRemaining()) {
+                    _bytes += _channel.write(whole);
+                }
+                return;
+            }
+        }
+        _buffer.put(bytes);
+    }
+
+    /** Write out and empty _buffer. */
+    private void flush() throws IOException {
+        _buffer.flip();
+        while (_buffer.hasRemaining()) {
+            _bytes += _channel.write(_buffer);
+        }
+        _buffer.clear();
+    }
+
+    /** Return a description of the size and speed of the last write. */
+    String statistics() {
+        double millis = _nanos / 1e6;
+        double megabytes = _bytes / 1e6;
+        return format("%d rows, %d bytes in %.1f ms (%.1f MB/s)",
+                      _rows, _bytes, millis,
+                      millis == 0 ? 0.0 : megabytes / (millis / 1000));
+    }
+
+    /** Size of the output buffer. */
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /** Name of my file, less its extension. */
+    private String _name;
+    /** Output buffer, reused between writes. */
+    private final ByteBuffer _buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    /** Channel for the file being written. */
+    private FileChannel _channel;
+    /** Number of bytes in the file last written. */
+    private long _bytes;
+    /** Number of rows in the table last written. */
+    private int _rows;
+    /** Time taken by the last write, in nanoseconds. */
+    private long _nanos;
+}
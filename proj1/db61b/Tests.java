@@ -2,8 +2,19 @@ package db61b;
 
 import org.junit.Test;
 import static org.junit.Assert.*;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 
 /** Tests basic functionality of db61b, not including input token reading.
  *  @author Adam Shi
@@ -76,6 +87,215 @@ public class Tests {
         assertEquals(1, t.size());
     }
 
+    /** Tests bulk insertion into a Table. */
+    @Test
+    public void testAddAll() {
+        Table t = new Table(new String[] {"A", "B"});
+        ArrayList<Row> rows = new ArrayList<Row>();
+        for (int i = 0; i < 100; i += 1) {
+            rows.add(new Row(new String[] {"" + i, "" + (i % 7)}));
+        }
+        rows.add(new Row(new String[] {"3", "3"}));
+        rows.add(new Row(new String[] {"too", "many", "columns"}));
+        assertEquals(100, t.addAll(rows));
+        assertEquals(100, t.size());
+        assertEquals(0, t.addAll(rows));
+        assertTrue(!t.add(new Row(new String[] {"42", "0"})));
+        assertTrue(t.add(new Row(new String[] {"42", "1"})));
+        assertEquals(101, t.size());
+    }
+
+    /** Tests the dictionary-encoded column storage of Tables. */
+    @Test
+    public void testColumnStorage() {
+        ValueDictionary dict = new ValueDictionary();
+        assertEquals(-1, dict.find("EECS"));
+        assertEquals(0, dict.encode("EECS"));
+        assertEquals(1, dict.encode("Math"));
+        assertEquals(0, dict.encode(new String("EECS")));
+        assertEquals(2, dict.size());
+        for (int i = 0; i < 1000; i += 1) {
+            assertEquals(i + 2, dict.encode("v" + i));
+        }
+        assertEquals("v500", dict.get(502));
+        assertEquals(502, dict.find("v500"));
+
+        Table t = new Table(new String[] {"Dept", "Num"});
+        for (int i = 0; i < 1000; i += 1) {
+            assertTrue(t.add(new Row(new String[] {"EECS", "" + i})));
+        }
+        assertTrue(!t.add(new Row(new String[] {"EECS", "999"})));
+        assertEquals(1000, t.size());
+        assertEquals(1001, t.dictionary().size());
+        assertEquals("EECS", t.get(400, 0));
+        assertEquals(t.code(3, 0), t.code(700, 0));
+        assertEquals(new Row(new String[] {"EECS", "7"}), t.getRow(7));
+        int n;
+        n = 0;
+        for (Row row : t) {
+            assertSame(t.get(0, 0), row.get(0));
+            n += 1;
+        }
+        assertEquals(1000, n);
+    }
+
+    /** Tests sharing one dictionary among the tables of a database. */
+    @Test
+    public void testSharedDictionary() {
+        Database d = new Database();
+        Table students = Table.readTable("students", d.dictionary());
+        Table enrolled = Table.readTable("enrolled", d.dictionary());
+        assertSame(d.dictionary(), students.dictionary());
+        int sid = students.findColumn("SID");
+        int code = d.dictionary().find("101");
+        assertTrue(code != -1);
+        assertEquals(code, students.code(0, sid));
+        assertEquals(code, enrolled.code(0, enrolled.findColumn("SID")));
+
+        Table join = students.findInnerJoin(enrolled);
+        assertSame(d.dictionary(), join.dictionary());
+        assertEquals(enrolled.size(), join.size());
+
+        ArrayList<String> columnNames = new ArrayList<String>();
+        columnNames.add("SID");
+        ArrayList<Condition> conditions = new ArrayList<Condition>();
+        conditions.add(new Condition(new Column("Lastname", students),
+                                     "=", "Nonesuch"));
+        assertEquals(0, students.select(columnNames, conditions).size());
+        conditions.set(0, new Condition(new Column("Lastname", students),
+                                        "!=", "Nonesuch"));
+        assertEquals(students.size(),
+                     students.select(columnNames, conditions).size());
+        students.add(new Row(new String[] {"999", "Nonesuch", "A",
+                                           "F", "2004", "EECS"}));
+        conditions.set(0, new Condition(new Column("Lastname", students),
+                                        "=", "Nonesuch"));
+        assertEquals(1, students.select(columnNames, conditions).size());
+        conditions.set(0, new Condition(new Column("SID", students),
+                                        "=", new Column("Lastname",
+                                                        students)));
+        assertEquals(0, students.select(columnNames, conditions).size());
+    }
+
+    /** Tests that the memory-mapped loader reads the same tables as the
+     *  line-by-line loader, including in odd cases. */
+    @Test
+    public void testMappedLoader() throws IOException {
+        for (String name : new String[] {"students", "enrolled", "blank"}) {
+            Table buffered =
+                new TableReader(name, new ValueDictionary()).readBuffered();
+            Table mapped =
+                new TableReader(name, new ValueDictionary()).readMapped();
+            assertEquals(buffered.columns(), mapped.columns());
+            assertEquals(rowSet(buffered), rowSet(mapped));
+        }
+
+        File file = File.createTempFile("db61b", ".db");
+        file.deleteOnExit();
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file),
+                                                 "UTF-8")) {
+            out.write("A,B,C\r\n1,2,3\r\n4,,6\n7,8\n9,10,11,12\n"
+                      + "1,2,3\n,,\n13,14,15,\ncaf\u00e9,\u00fc,x\n"
+                      + "16,17,18");
+        }
+        String name = file.getPath().replaceAll("\\.db$", "");
+        Table buffered =
+            new TableReader(name, new ValueDictionary()).readBuffered();
+        Table mapped =
+            new TableReader(name, new ValueDictionary()).readMapped();
+        Table parallel =
+            new TableReader(name, new ValueDictionary()).readParallel();
+        assertEquals("C", mapped.getTitle(2));
+        assertEquals(5, mapped.size());
+        assertEquals(rowSet(buffered), rowSet(mapped));
+        assertEquals(rowSet(buffered), rowSet(parallel));
+        assertTrue(rowSet(mapped).contains(
+            new Row(new String[] {"caf\u00e9", "\u00fc", "x"})));
+
+        try {
+            new TableReader("nonesuch", new ValueDictionary()).readMapped();
+            fail("Should have thrown exception");
+        } catch (DBException d) {
+            assertEquals("could not find nonesuch.db", d.getMessage());
+        }
+    }
+
+    /** Tests that a file split into many chunks is read in parallel with
+     *  the same rows, in the same order, as when read sequentially. */
+    @Test
+    public void testParallelLoader() throws IOException {
+        File file = File.createTempFile("db61b", ".db");
+        file.deleteOnExit();
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file),
+                                                 "UTF-8")) {
+            out.write("Id,Group\n");
+            for (int i = 0; i < 400000; i += 1) {
+                out.write((i % 300000) + "," + (i % 300000 % 17) + "\n");
+            }
+        }
+        String name = file.getPath().replaceAll("\\.db$", "");
+        ValueDictionary dict = new ValueDictionary();
+        Table mapped = new TableReader(name, dict).readMapped();
+        Table parallel = new TableReader(name, dict).readParallel();
+        assertEquals(300000, parallel.size());
+        assertEquals(mapped.size(), parallel.size());
+        for (int row = 0; row < mapped.size(); row += 1) {
+            assertEquals(mapped.code(row, 0), parallel.code(row, 0));
+            assertEquals(mapped.code(row, 1), parallel.code(row, 1));
+        }
+    }
+
+    /** Tests that stored tables read back intact and that a store
+     *  replaces the previous file without leaving temporary files. */
+    @Test
+    public void testWriter() throws IOException {
+        File dir = Files.createTempDirectory("db61b").toFile();
+        dir.deleteOnExit();
+        String name = new File(dir, "out").getPath();
+        Table t = new Table(new String[] {"Key", "Value"});
+        for (int i = 0; i < 100000; i += 1) {
+            t.add(new Row(new String[] {"k" + i, "v" + (i % 10)}));
+        }
+        t.add(new Row(new String[] {"caf\u00e9", "\u00fc"}));
+        String big = String.join("", Collections.nCopies(3000000, "x"));
+        t.add(new Row(new String[] {"big", big}));
+        t.writeTable(name);
+        Table back = Table.readTable(name);
+        assertEquals(rowSet(t), rowSet(back));
+
+        Table small = new Table(new String[] {"A"});
+        small.add(new Row(new String[] {"1"}));
+        small.writeTable(name);
+        assertEquals(1, Table.readTable(name).size());
+        assertEquals(1, dir.list().length);
+        new File(name + ".db").delete();
+    }
+
+    /** Tests that tables stored in binary, with codes of each width, read
+     *  back intact and still reject duplicate rows. */
+    @Test
+    public void testBinaryFormat() throws IOException {
+        File dir = Files.createTempDirectory("db61b").toFile();
+        dir.deleteOnExit();
+        String name = new File(dir, "out").getPath();
+        Table t = new Table(new String[] {"Key", "Mid", "Low"});
+        for (int i = 0; i < 100000; i += 1) {
+            t.add(new Row(new String[] {"k" + i, "m" + (i % 300),
+                                        "\u00e9" + (i % 10)}));
+        }
+        t.writeBinaryTable(name);
+        ValueDictionary dict = new ValueDictionary();
+        Table back = Table.readBinaryTable(name, dict);
+        assertEquals(t.size(), back.size());
+        for (int row = 0; row < t.size(); row += 1) {
+            assertEquals(t.getRow(row), back.getRow(row));
+        }
+        assertFalse(back.add(new Row(new String[] {"k7", "m7", "\u00e97"})));
+        assertTrue(back.add(new Row(new String[] {"k7", "m7", "x"})));
+        assertEquals(t.size() + 1, back.size());
+        new File(name + ".dbb").delete();
+    }
+
     /** Tests the Database class. */
     @Test
     public void testDatabase() {
@@ -145,13 +365,960 @@ public class Tests {
         conditions.add(new Condition(col1, relation, val2));
         Table actual = students.select(enrolled, columnNames, conditions);
 
-        Iterator actualIterator = actual.iterator();
-        Iterator expectedIterator = expected.iterator();
+        assertEquals(rowSet(expected), rowSet(actual));
+    }
+
+    /** Tests that each kind of compiled condition agrees with testing
+     *  whole rows, including on values added after it was first used. */
+    @Test
+    public void testCompiledConditions() {
+        Table students = Table.readTable("students");
+        Table[] tables = { students };
+        Column last = new Column("Lastname", students),
+            first = new Column("Firstname", students);
+        ArrayList<Condition> conds = new ArrayList<Condition>();
+        for (String rel : new String[] {"<", ">", "<=", ">=", "=", "!="}) {
+            conds.add(new Condition(last, rel, "Jones"));
+            conds.add(new Condition(last, rel, "Nonesuch"));
+            conds.add(new Condition(last, rel, first));
+            conds.add(new Condition(last, rel, last));
+        }
+        for (int pass = 0; pass < 2; pass += 1) {
+            for (Condition cond : conds) {
+                int[] rows = new int[1];
+                for (rows[0] = 0; rows[0] < students.size(); rows[0] += 1) {
+                    assertEquals(cond.test(students.getRow(rows[0])),
+                                 cond.test(tables, rows));
+                }
+            }
+            students.add(new Row(new String[] {"999", "Nonesuch", "Jones",
+                                               "F", "2004", "EECS"}));
+        }
+    }
+
+    /** Tests that a join whose conditions are pushed down to its inputs,
+     *  with and without indexes, agrees with filtering the full join, and
+     *  that conditions are ordered by their estimated cost per row
+     *  rejected. */
+    @Test
+    public void testPushdown() {
+        Table students = Table.readTable("students");
+        Table enrolled = Table.readTable("enrolled");
+        Table join = students.findInnerJoin(enrolled);
+        ArrayList<String> columnNames = new ArrayList<String>();
+        columnNames.add("Lastname");
+        columnNames.add("CCN");
+        columnNames.add("Grade");
+        for (int pass = 0; pass < 2; pass += 1) {
+            ArrayList<Condition> split = new ArrayList<Condition>(),
+                whole = new ArrayList<Condition>();
+            Table[] tables = { students, enrolled };
+            split.add(new Condition(new Column("Grade", tables), "!=", "B"));
+            split.add(new Condition(new Column("Major", tables), "=", "EECS"));
+            Condition costly =
+                new Condition(new Column("SemEnter", tables), "<",
+                              new Column("Grade", tables));
+            split.add(costly);
+            split.add(new Condition(new Column("CCN", tables), ">=",
+                                    "21001"));
+            for (String[] cond : new String[][] {{"Grade", "!=", "B"},
+                                                 {"Major", "=", "EECS"},
+                                                 {"CCN", ">=", "21001"}}) {
+                whole.add(new Condition(new Column(cond[0], join), cond[1],
+                                        cond[2]));
+            }
+            whole.add(new Condition(new Column("SemEnter", join), "<",
+                                    new Column("Grade", join)));
+            Condition vacuous =
+                new Condition(new Column("Grade", tables), "!=", "Z");
+            split.add(0, vacuous);
+            Condition.order(split, tables);
+            assertEquals("=", split.get(0).getRelation());
+            assertTrue(split.indexOf(costly) < split.indexOf(vacuous));
+            assertEquals(rowSet(join.select(columnNames, whole)),
+                         rowSet(students.select(enrolled, columnNames,
+                                                split)));
+            students.createIndex("major" + pass,
+                                 Collections.singletonList("Major"));
+            enrolled.createIndex("ccn" + pass,
+                                 Collections.singletonList("CCN"));
+        }
+    }
+
+    /** Tests that a select pipeline streams rows with duplicates that
+     *  Distinct and collecting into a table both remove. */
+    @Test
+    public void testPipeline() {
+        Table students = Table.readTable("students");
+        Table enrolled = Table.readTable("enrolled");
+        ArrayList<String> columnNames = new ArrayList<String>();
+        columnNames.add("Lastname");
+        ArrayList<Condition> none = new ArrayList<Condition>();
+        Operator plan = students.selectPlan(enrolled, columnNames, none);
+        int count;
+        for (count = 0; plan.next(); count += 1) {
+            assertEquals(1, plan.tuple().length);
+        }
+        assertEquals(enrolled.size(), count);
+
+        Table collected =
+            Table.collect(students.selectPlan(enrolled, columnNames, none));
+        Operator distinct =
+            new Operator.Distinct(students.selectPlan(enrolled, columnNames,
+                                                      none));
+        HashSet<String> seen = new HashSet<String>();
+        while (distinct.next()) {
+            assertTrue(seen.add(students.dictionary()
+                                .get(distinct.tuple()[0])));
+        }
+        assertEquals(collected.size(), seen.size());
+        assertTrue(seen.size() < count);
+    }
+
+    /** Tests that a join of three tables, in any order in the from
+     *  clause, agrees with joining them two at a time. */
+    @Test
+    public void testMultiwayJoin() {
+        Table students = Table.readTable("students");
+        Table enrolled = Table.readTable("enrolled");
+        Table schedule = Table.readTable("schedule");
+        ArrayList<String> columnNames = new ArrayList<String>();
+        columnNames.add("Lastname");
+        columnNames.add("Num");
+        columnNames.add("Grade");
+        Table expected = students.findInnerJoin(enrolled)
+            .findInnerJoin(schedule)
+            .select(columnNames, new ArrayList<Condition>());
+        Table[][] orders = {
+            { students, enrolled, schedule },
+            { schedule, students, enrolled },
+            { enrolled, schedule, students }
+        };
+        for (Table[] tables : orders) {
+            Table actual = Table.collect(
+                Planner.plan(tables, columnNames,
+                             new ArrayList<Condition>()));
+            assertEquals(rowSet(expected), rowSet(actual));
+        }
+    }
+
+    /** Tests that column statistics follow added rows and that a plan
+     *  counts the rows each of its steps produces. */
+    @Test
+    public void testStatistics() {
+        Table students = Table.readTable("students");
+        int major = students.findColumn("Major");
+        ColumnStatistics stats = students.statistics(major);
+        assertEquals(3, stats.distinct());
+        assertEquals("EECS", stats.min());
+        assertEquals("Math", stats.max());
+        students.add(new Row(new String[] {"999", "Nonesuch", "A",
+                                           "F", "2004", "Art"}));
+        assertEquals(4, stats.distinct());
+        assertEquals("Art", stats.min());
+
+        ArrayList<String> columnNames = new ArrayList<String>();
+        columnNames.add("SID");
+        ArrayList<Condition> conditions = new ArrayList<Condition>();
+        conditions.add(new Condition(new Column("Major", students), "=",
+                                     "Math"));
+        Operator plan = students.selectPlan(columnNames, conditions);
+        assertEquals((long) Math.ceil(students.size() / 4.0),
+                     plan.estimate());
+        int count;
+        for (count = 0; plan.next(); count += 1) {
+            continue;
+        }
+        assertEquals(count, plan.count());
+        assertEquals(students.size(), plan.inputs()[0].inputs()[0].count());
+        conditions.set(0, new Condition(new Column("Major", students), "<",
+                                        "Art"));
+        assertEquals(0, students.selectPlan(columnNames, conditions)
+                     .estimate());
+    }
+
+    /** Tests that sorting orders the rows of a table stably by several
+     *  columns, whether or not it must spill runs to disk, and that a
+     *  sort abandoned partway through deletes its runs when closed. */
+    @Test
+    public void testSort() throws IOException {
+        Table enrolled = Table.readTable("enrolled");
+        Table[] tables = { enrolled };
+        Column[] keys = { new Column("Grade", enrolled),
+                          new Column("CCN", enrolled) };
+        ArrayList<Integer> expected = new ArrayList<Integer>();
+        for (int row = 0; row < enrolled.size(); row += 1) {
+            expected.add(row);
+        }
+        expected.sort((r1, r2) -> {
+            for (Column key : keys) {
+                int c = enrolled.get(r1, key.getColumn())
+                    .compareTo(enrolled.get(r2, key.getColumn()));
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return 0;
+        });
+        List<Condition> none = Collections.emptyList();
+        for (int runSize : new int[] { 1 << 20, 9 }) {
+            int[] rows = new int[1];
+            Operator sort =
+                new Operator.Sort(enrolled.scan(tables, rows, 0, none, "e"),
+                                  tables, keys, runSize);
+            ArrayList<Integer> actual = new ArrayList<Integer>();
+            while (sort.next()) {
+                actual.add(rows[0]);
+            }
+            assertEquals(expected, actual);
+        }
+
+        long runs = runFiles();
+        int[] rows = new int[1];
+        Operator sort =
+            new Operator.Sort(enrolled.scan(tables, rows, 0, none, "e"),
+                              tables, keys, 9);
+        assertTrue(sort.next());
+        assertTrue(runFiles() > runs);
+        sort.close();
+        assertEquals(runs, runFiles());
+    }
+
+    /** Return the number of sort runs in the temporary directory. */
+    private static long runFiles() throws IOException {
+        try (java.util.stream.Stream<java.nio.file.Path> files =
+             Files.list(new File(System.getProperty("java.io.tmpdir"))
+                        .toPath())) {
+            return files.filter(f -> f.getFileName().toString()
+                                .matches("db61b.*\\.run")).count();
+        }
+    }
+
+    /** Tests that tables built by ordered selects remember their order,
+     *  that the merge join of two such tables agrees with the hash join,
+     *  and that an added row out of order is noticed. */
+    @Test
+    public void testMergeJoin() {
+        Table students = Table.readTable("students");
+        Table enrolled = Table.readTable("enrolled");
+        List<Condition> none = Collections.emptyList();
+        List<String> bySID = Arrays.asList("SID");
+        Table sortedStudents =
+            Table.collect(Planner.plan(new String[] { "students" },
+                                       new Table[] { students },
+                                       Arrays.asList("SID", "Lastname"),
+                                       none, bySID));
+        Table sortedEnrolled =
+            Table.collect(Planner.plan(new String[] { "enrolled" },
+                                       new Table[] { enrolled },
+                                       Arrays.asList("CCN", "SID", "Grade"),
+                                       none, bySID));
+        assertEquals(bySID, sortedStudents.sortedBy());
+        assertEquals(bySID, sortedEnrolled.sortedBy());
+        Table merged = sortedStudents.findInnerJoin(sortedEnrolled);
+        assertEquals(bySID, merged.sortedBy());
+        assertEquals(rowSet(sortedStudents.hashJoin(sortedEnrolled, bySID)),
+                     rowSet(merged));
+        assertEquals(enrolled.size(), merged.size());
+        Operator.Output plan =
+            Planner.plan(new String[] { "s", "e" },
+                         new Table[] { sortedStudents, sortedEnrolled },
+                         Arrays.asList("SID", "Lastname", "CCN", "Grade"),
+                         none);
+        java.io.ByteArrayOutputStream description =
+            new java.io.ByteArrayOutputStream();
+        plan.explain("", new java.io.PrintStream(description));
+        assertTrue(description.toString().contains("Merge join on (SID)"));
+        assertEquals(rowSet(merged), rowSet(Table.collect(plan)));
+        String last = null;
+        for (int row = 0; row < merged.size(); row += 1) {
+            String sid = merged.get(row, 0);
+            assertTrue(last == null || last.compareTo(sid) <= 0);
+            last = sid;
+        }
+
+        sortedStudents.add(new Row(new String[] {"99999", "Zed"}));
+        assertEquals(bySID, sortedStudents.sortedBy());
+        sortedStudents.add(new Row(new String[] {"000", "Aardvark"}));
+        assertTrue(sortedStudents.sortedBy().isEmpty());
+    }
+
+    /** Tests grouping and each aggregate function, with and without
+     *  groups, and over no rows, that sums of ints are exact, and that
+     *  aggregates leave the dictionary of their input alone. */
+    @Test
+    public void testAggregate() {
+        Table students = Table.readTable("students");
+        String[] names = { "students" };
+        Table[] tables = { students };
+        List<Condition> none = Collections.emptyList();
+        List<String> byMajor = Arrays.asList("Major");
+        Table result =
+            Table.collect(Planner.plan(names, tables,
+                                       Arrays.asList("count(*)", "Major",
+                                                     "min(SID)", "max(SID)",
+                                                     "sum(SID)",
+                                                     "avg(SID)"),
+                                       none, byMajor, byMajor));
+        assertEquals(Arrays.asList("count", "Major", "min_SID", "max_SID",
+                                   "sum_SID", "avg_SID"),
+                     Arrays.asList(result.getTitle(0), result.getTitle(1),
+                                   result.getTitle(2), result.getTitle(3),
+                                   result.getTitle(4), result.getTitle(5)));
+        assertEquals(byMajor, result.sortedBy());
+        assertEquals(3, result.size());
+        int total = 0;
+        for (int row = 0; row < result.size(); row += 1) {
+            String major = result.get(row, 1);
+            int count = 0, sum = 0;
+            String least = null, greatest = null;
+            for (int r = 0; r < students.size(); r += 1) {
+                if (students.get(r, students.findColumn("Major"))
+                    .equals(major)) {
+                    String sid = students.get(r, 0);
+                    count += 1;
+                    sum += Integer.parseInt(sid);
+                    least = least == null || sid.compareTo(least) < 0
+                        ? sid : least;
+                    greatest = greatest == null || sid.compareTo(greatest) > 0
+                        ? sid : greatest;
+                }
+            }
+            assertEquals(Integer.toString(count), result.get(row, 0));
+            assertEquals(least, result.get(row, 2));
+            assertEquals(greatest, result.get(row, 3));
+            assertEquals(Integer.toString(sum), result.get(row, 4));
+            assertEquals(sum / (double) count,
+                         Double.parseDouble(result.get(row, 5)), 1e-9);
+            total += count;
+        }
+        assertEquals(students.size(), total);
+
+        ArrayList<Condition> nothing = new ArrayList<Condition>();
+        nothing.add(new Condition(new Column("SID", students), "=", "0"));
+        result = Table.collect(Planner.plan(names, tables,
+                                            Arrays.asList("count(*)",
+                                                          "sum(SID)",
+                                                          "min(SID)"),
+                                            nothing,
+                                            Collections.<String>emptyList(),
+                                            Collections.<String>emptyList()));
+        assertEquals(1, result.size());
+        assertEquals("0", result.get(0, 0));
+        assertEquals("0", result.get(0, 1));
+        assertEquals("", result.get(0, 2));
+
+        ValueDictionary dict = new ValueDictionary();
+        Table big = Table.withHeadings(new String[] { "N:int" }, dict);
+        big.add(new Row(new String[] { "9007199254740993" }));
+        big.add(new Row(new String[] { "1000000000000000" }));
+        int size = dict.size();
+        result = Table.collect(Planner.plan(names, new Table[] { big },
+                                            Arrays.asList("sum(N)",
+                                                          "max(N)"),
+                                            none,
+                                            Collections.<String>emptyList(),
+                                            Collections.<String>emptyList()));
+        assertEquals("10007199254740993", result.get(0, 0));
+        assertEquals("9007199254740993", result.get(0, 1));
+        assertEquals(size, dict.size());
+    }
+
+    /** Tests that typed columns reject values of the wrong type and
+     *  compare, sort, and index their values numerically. */
+    @Test
+    public void testTypes() {
+        Table nums = Table.withHeadings(new String[] { "Id:int",
+                                                       "Price:double",
+                                                       "Name" },
+                                        new ValueDictionary());
+        assertEquals(Type.INT, nums.getType(0));
+        assertEquals(Type.DOUBLE, nums.getType(1));
+        assertEquals(Type.STRING, nums.getType(2));
+        assertEquals("Price:double", nums.getHeading(1));
+        assertEquals("Name", nums.getHeading(2));
+        assertEquals(Type.DOUBLE, Type.kindOf("5.0"));
+        assertEquals(Type.STRING, Type.kindOf(" 5"));
+        assertEquals(Type.STRING, Type.kindOf("5.0 "));
+        String[][] rows = {
+            { "9", "9.5", "a" }, { "10", "10", "b" }, { "-3", "1e3", "c" },
+            { "100", "-0.5", "d" }
+        };
+        for (String[] row : rows) {
+            assertTrue(nums.add(new Row(row)));
+        }
+        try {
+            nums.add(new Row(new String[] { "1.5", "0", "e" }));
+            fail("added a double to an int column");
+        } catch (DBException e) {
+            /* Expected */
+        }
+        try {
+            new Condition(new Column("Price", nums), "<", "cheap");
+            fail("compared a double with a string");
+        } catch (DBException e) {
+            /* Expected */
+        }
+        assertEquals(4, nums.size());
+
+        List<String> names = Arrays.asList("Name");
+        ArrayList<Condition> conditions = new ArrayList<Condition>();
+        conditions.add(new Condition(new Column("Id", nums), ">", "9"));
+        assertEquals(new HashSet<String>(Arrays.asList("b", "d")),
+                     new HashSet<String>(column(nums.select(names,
+                                                            conditions))));
+        conditions.set(0, new Condition(new Column("Price", nums), "=",
+                                        "10.0"));
+        assertEquals(Arrays.asList("b"),
+                     column(nums.select(names, conditions)));
+        nums.createIndex("byPrice", Arrays.asList("Price"));
+        conditions.set(0, new Condition(new Column("Price", nums), ">=",
+                                        "9.5"));
+        assertEquals(new HashSet<String>(Arrays.asList("a", "b", "c")),
+                     new HashSet<String>(column(nums.select(names,
+                                                            conditions))));
+
+        List<Condition> none = Collections.emptyList();
+        Table sorted =
+            Table.collect(Planner.plan(new String[] { "nums" },
+                                       new Table[] { nums }, names, none,
+                                       Arrays.asList("Id")));
+        assertEquals(Arrays.asList("c", "a", "b", "d"), column(sorted));
+        sorted = Table.collect(Planner.plan(new String[] { "nums" },
+                                            new Table[] { nums },
+                                            Arrays.asList("Price", "Name"),
+                                            none, Arrays.asList("Price")));
+        assertEquals(Type.DOUBLE, sorted.getType(0));
+        assertEquals(Arrays.asList("-0.5", "9.5", "10", "1e3"),
+                     Arrays.asList(sorted.get(0, 0), sorted.get(1, 0),
+                                   sorted.get(2, 0), sorted.get(3, 0)));
+    }
+
+    /** Tests that numbers equal as values of their columns' types count
+     *  as the same value when rows are compared and joined, as they do in
+     *  conditions. */
+    @Test
+    public void testNumericEquality() {
+        ValueDictionary dict = new ValueDictionary();
+        Table prices = Table.withHeadings(new String[] { "Price:double",
+                                                         "Name" }, dict);
+        assertTrue(prices.add(new Row(new String[] { "1.0", "pen" })));
+        assertFalse(prices.add(new Row(new String[] { "1", "pen" })));
+        assertTrue(prices.add(new Row(new String[] { "-0", "pen" })));
+        assertFalse(prices.add(new Row(new String[] { "0.0", "pen" })));
+        assertEquals(2, prices.size());
+        assertEquals("1.0", prices.get(0, 0));
+
+        Table counts = Table.withHeadings(new String[] { "Price:int",
+                                                         "Count:int" },
+                                          dict);
+        counts.add(new Row(new String[] { "1", "01" }));
+        assertFalse(counts.add(new Row(new String[] { "+1", "1" })));
+        Table other = Table.withHeadings(new String[] { "Price:double" },
+                                         new ValueDictionary());
+        other.add(new Row(new String[] { "1.00" }));
+        List<String> byPrice = Arrays.asList("Price");
+        assertEquals(1, prices.hashJoin(counts, byPrice).size());
+        assertEquals(1, prices.hashJoin(other, byPrice).size());
+        assertEquals(1, other.hashJoin(prices, byPrice).size());
+    }
+
+    /** Tests that numbers keep their spelling however their table is
+     *  loaded, even when their dictionary already has them spelt another
+     *  way, while rows equal to one already present are still dropped. */
+    @Test
+    public void testNumericSpelling() throws IOException {
+        File file = File.createTempFile("db61b", ".db");
+        file.deleteOnExit();
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file),
+                                                 "UTF-8")) {
+            out.write("Price:double,Name\n5,a\n2.50,b\n5.0,a\n5.00,c\n");
+        }
+        String name = file.getPath().replaceAll("\\.db$", "");
+        ValueDictionary dict = new ValueDictionary();
+        Table first = Table.withHeadings(new String[] { "Price:double" },
+                                         dict);
+        first.add(new Row(new String[] { "5.0" }));
+        first.add(new Row(new String[] { "2.5" }));
+        List<String> spelt = Arrays.asList("5", "2.50", "5.00");
+        List<String> price = Arrays.asList("Price");
+        List<Condition> none = Collections.emptyList();
+        for (Table table : new Table[] {
+                new TableReader(name, new ValueDictionary()).readBuffered(),
+                new TableReader(name, dict).readMapped(),
+                new TableReader(name, dict).readParallel() }) {
+            assertEquals(spelt, column(table));
+            assertEquals(Arrays.asList("5", "2.50"),
+                         column(table.select(price, none)));
+            Operator distinct =
+                new Operator.Distinct(table.selectPlan(price, none));
+            assertTrue(distinct.next());
+            assertEquals("5", table.dictionary().get(distinct.tuple()[0]));
+            table.writeTable(name);
+            assertEquals(spelt, column(Table.readTable(name)));
+        }
+        assertEquals(Arrays.asList("5.0", "2.5"), column(first));
+    }
+
+    /** Return the values of the first column of TABLE in row order. */
+    private static List<String> column(Table table) {
+        ArrayList<String> result = new ArrayList<String>();
+        for (int row = 0; row < table.size(); row += 1) {
+            result.add(table.get(row, 0));
+        }
+        return result;
+    }
+
+    /** Tests that a log returns its records after a torn write, and that
+     *  a durable database recovers from its snapshots and log. */
+    @Test
+    public void testLog() throws IOException {
+        File dir = Files.createTempDirectory("db61b").toFile();
+        java.nio.file.Path file = dir.toPath().resolve("test.log");
+        Log log = new Log(file, r -> fail("new log has records"));
+        log.append("one", "");
+        log.append("two", "zwei", "\u4e8c");
+        log.close();
+        long size = Files.size(file);
+        try (FileOutputStream out = new FileOutputStream(file.toFile(),
+                                                         true)) {
+            out.write(new byte[] { 0, 0, 0, 40, 1, 2, 3 });
+        }
+        List<String> replayed = new ArrayList<String>();
+        log = new Log(file, r -> replayed.add(String.join("/", r)));
+        assertEquals(Arrays.asList("one/", "two/zwei/\u4e8c"), replayed);
+        assertEquals(size, log.size());
+        log.append("three");
+        log.close();
+        replayed.clear();
+        Log.readAll(file, r -> replayed.add(String.join("/", r)));
+        assertEquals(3, replayed.size());
+
+        String path = dir.toPath().resolve("db").toString();
+        Database d = new Database();
+        d.open(path);
+        Table t = Table.withHeadings(new String[] { "Id:int", "Name" },
+                                     d.dictionary());
+        t.add(new Row(new String[] { "1", "a, b" }));
+        d.create("t", t);
+        d.insert("t", new Row(new String[] { "2", "c" }));
+        d.createIndex("t", "byName", Arrays.asList("Name"));
+        d.checkpoint();
+        d.insert("t", new Row(new String[] { "3", "d" }));
+        d.close();
+
+        Database e = new Database();
+        e.open(path);
+        Table r = e.get("t");
+        assertEquals(3, r.size());
+        assertEquals(Type.INT, r.getType(0));
+        assertEquals("a, b", r.get(0, 1));
+        assertEquals(1, r.indexes().size());
+        assertTrue(e.insert("t", new Row(new String[] { "4", "e" })));
+        assertFalse(e.insert("t", new Row(new String[] { "4", "e" })));
+        java.nio.file.Path wal = dir.toPath().resolve("db")
+            .resolve(Database.LOG);
+        long synced = Files.size(wal);
+        e.insert("t", new Row(new String[] { "5", "f" }));
+        assertTrue(Files.size(wal) > synced);
+
+        byte[] stale = Files.readAllBytes(wal);
+        Table loaded = Table.withHeadings(new String[] { "Id:int", "Name" },
+                                          e.dictionary());
+        for (int i = 0; i < 10; i += 1) {
+            loaded.add(new Row(new String[] { "1" + i, "x" }));
+        }
+        e.load("t", () -> loaded);
+        e.checkpoint();
+        e.close();
+        Files.write(wal, stale);
+        Database f = new Database();
+        f.open(path);
+        assertEquals(10, f.get("t").size());
+        assertTrue(f.insert("t", new Row(new String[] { "6", "g" })));
+        Database g = new Database();
+        g.open(path);
+        assertEquals(11, g.get("t").size());
+        g.close();
+        f.close();
+    }
+
+    /** Tests that sessions sharing a database may insert into and select
+     *  from the same tables at once. */
+    @Test
+    public void testConcurrentSessions() throws InterruptedException {
+        Database d = new Database();
+        CommandInterpreter setup =
+            new CommandInterpreter(new StringReader("create table t "
+                                                    + "(K int, V);"
+                                                    + "create table u "
+                                                    + "(L int);"),
+                                   null, null, d);
+        setup.run();
+        int sessions = 4, rows = 300;
+        Thread[] threads = new Thread[sessions];
+        java.io.ByteArrayOutputStream[] outputs =
+            new java.io.ByteArrayOutputStream[sessions];
+        for (int k = 0; k < sessions; k += 1) {
+            StringBuilder script = new StringBuilder();
+            for (int i = 0; i < rows; i += 1) {
+                String table = i % 2 == 0 ? "t" : "u";
+                script.append(String.format("insert into %s values '%d'%s;",
+                                            table, k * rows + i,
+                                            table.equals("t")
+                                            ? ", 'v" + i + "'" : ""));
+                if (i % 50 == 0) {
+                    script.append("select count(*), max(K) from t, u "
+                                  + "where K > L;");
+                }
+            }
+            outputs[k] = new java.io.ByteArrayOutputStream();
+            CommandInterpreter session =
+                new CommandInterpreter(new StringReader(script.toString()),
+                                       null,
+                                       new java.io.PrintStream(outputs[k]),
+                                       d);
+            threads[k] = new Thread(session::run);
+            threads[k].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (java.io.ByteArrayOutputStream output : outputs) {
+            assertFalse(output.toString(),
+                        output.toString().contains("Error"));
+        }
+        assertEquals(sessions * rows / 2, d.get("t").size());
+        assertEquals(sessions * rows / 2, d.get("u").size());
+    }
+
+    /** Tests that loaded tables are read only when used, and that the
+     *  least recently used are dropped and read again to stay within the
+     *  memory budget. */
+    @Test
+    public void testTableCache() {
+        int[] reads = new int[3];
+        Database d = new Database();
+        for (int k = 0; k < reads.length; k += 1) {
+            int which = k;
+            d.load("t" + k, () -> {
+                reads[which] += 1;
+                Table table = new Table(new String[] { "A" },
+                                        d.dictionary());
+                for (int i = 0; i < 1000; i += 1) {
+                    table.add(new Row(new String[] { which + "." + i }));
+                }
+                return table;
+            });
+        }
+        assertArrayEquals(new int[] { 0, 0, 0 }, reads);
+        long size = d.get("t0").memory();
+        d.setMemoryBudget(2 * size + size / 2);
+        d.get("t1");
+        d.get("t0");
+        d.get("t2");
+        assertArrayEquals(new int[] { 1, 1, 1 }, reads);
+        assertEquals(1000, d.get("t0").size());
+        assertEquals("2.7", d.get("t2").get(7, 0));
+        assertArrayEquals(new int[] { 1, 1, 1 }, reads);
+        assertEquals("1.5", d.get("t1").get(5, 0));
+        assertArrayEquals(new int[] { 1, 2, 1 }, reads);
+
+        d.insert("t2", new Row(new String[] { "new" }));
+        d.get("t1");
+        d.get("t0");
+        assertEquals(1001, d.get("t2").size());
+        assertEquals(1, reads[2]);
+    }
+
+    /** Tests that a session whose input fails, as when a client resets
+     *  its connection, ends rather than retrying the read forever. */
+    @Test
+    public void testFailingInput() throws InterruptedException {
+        java.io.Reader failing = new java.io.Reader() {
+            @Override
+            public int read(char[] buf, int off, int len)
+                throws IOException {
+                if (_sent) {
+                    throw new IOException("connection reset");
+                }
+                _sent = true;
+                String text = "create table t (A); insert into t values";
+                text.getChars(0, text.length(), buf, off);
+                return text.length();
+            }
+
+            @Override
+            public void close() {
+            }
+
+            private boolean _sent;
+        };
+        Database d = new Database();
+        java.io.ByteArrayOutputStream output =
+            new java.io.ByteArrayOutputStream();
+        Thread session =
+            new Thread(new CommandInterpreter(failing, null,
+                                              new java.io.PrintStream(output),
+                                              d)::run);
+        session.setDaemon(true);
+        session.start();
+        session.join(10000);
+        assertFalse("session did not end", session.isAlive());
+        assertTrue(d.get("t") != null);
+        assertEquals(0, d.get("t").size());
+    }
+
+    /** Tests that select clauses differing only in their literals share
+     *  one cached parse, with each literal checked and applied afresh,
+     *  and that a cached parse is not used once its tables change
+     *  shape. */
+    @Test
+    public void testPlanCache() {
+        Database d = new Database();
+        java.io.ByteArrayOutputStream output =
+            new java.io.ByteArrayOutputStream();
+        String script = "create table t (K int, V);"
+            + "insert into t values ('1', 'a'), ('2', 'b'), ('3', 'c');"
+            + "select V from t where K > '1' and V != 'c';"
+            + "select V from t where K > '0' and V != 'b';"
+            + "select V from t where K > 'x' and V != 'b';"
+            + "select V from t where K > '2' and V != 'a' order by V;";
+        new CommandInterpreter(new StringReader(script), null,
+                               new java.io.PrintStream(output), d).run();
+        assertEquals(2, d.plans().size());
+        String[] lines = output.toString().split(" *\n");
+        assertEquals(Arrays.asList("Search results:", "  b",
+                                   "Search results:", "  a", "  c"),
+                     Arrays.asList(lines).subList(0, 5));
+        assertTrue(lines[5].startsWith("Error: 'x' is not a valid int"));
+        assertEquals(Arrays.asList("Search results:", "  c"),
+                     Arrays.asList(lines).subList(6, 8));
+
+        Table t = new Table(new String[] { "V", "K" }, d.dictionary());
+        t.add(new Row(new String[] { "d", "10" }));
+        t.add(new Row(new String[] { "e", "9" }));
+        d.put("t", t);
+        output.reset();
+        new CommandInterpreter(new StringReader("select V from t where "
+                                                + "K > '5' and V != 'c';"),
+                               null, new java.io.PrintStream(output),
+                               d).run();
+        assertEquals(String.format("Search results:%n  e %n"),
+                     output.toString());
+
+        StringBuilder wide = new StringBuilder("select V from t where");
+        for (int k = 0; k < PlanCache.MAX_TOKENS / 4; k += 1) {
+            wide.append(" K > '0' and");
+        }
+        wide.append(" V != 'a';");
+        output.reset();
+        int cached = d.plans().size();
+        new CommandInterpreter(new StringReader(wide + "select V frm t "
+                                                + "where V = 'oops\n;"),
+                               null, new java.io.PrintStream(output),
+                               d).run();
+        assertEquals(cached, d.plans().size());
+        String[] results = output.toString().split(" *\n");
+        assertEquals(Arrays.asList("Search results:", "  d", "  e"),
+                     Arrays.asList(results).subList(0, 3));
+        assertEquals("Error: unexpected token: 'frm'", results[3]);
+    }
+
+    /** Tests that select results are reused while their tables are
+     *  unchanged, and only then, and that they are kept within their
+     *  budget. */
+    @Test
+    public void testResultCache() {
+        Database d = new Database();
+        d.setResultBudget(1 << 20);
+        java.io.ByteArrayOutputStream output =
+            new java.io.ByteArrayOutputStream();
+        String script = "create table t (K int, V);"
+            + "insert into t values ('1', 'a'), ('2', 'b');"
+            + "select V from t where K > '1';"
+            + "select V from t where K > '1';"
+            + "insert into t values ('3', 'c');"
+            + "select V from t where K > '1';";
+        new CommandInterpreter(new StringReader(script), null,
+                               new java.io.PrintStream(output), d).run();
+        assertEquals(String.format("Search results:%n  b %n"
+                                   + "Search results:%n  b %n"
+                                   + "Search results:%n  b %n  c %n"),
+                     output.toString());
+
+        Table t = d.get("t");
+        long version = t.version();
+        assertEquals(version, t.version());
+        assertFalse(t.add(new Row(new String[] { "3", "c" })));
+        assertEquals(version, t.version());
+        List<String> clause = Arrays.asList("select", "V", "from", "t");
+        Table[] tables = { t };
+        ResultCache results = new ResultCache(2 * t.memory());
+        results.put(clause, tables, t);
+        assertSame(t, results.get(clause, tables));
+        Table u = new Table(new String[] { "K", "V" }, d.dictionary());
+        assertTrue(u.version() != version);
+        assertNull(results.get(clause, new Table[] { u }));
+        results.put(clause, tables, t);
+        assertTrue(t.add(new Row(new String[] { "4", "d" })));
+        assertTrue(t.version() != version);
+        assertNull(results.get(clause, tables));
+        assertEquals(0, results.resident());
+
+        results.put(clause, tables, t);
+        results.put(Arrays.asList("select", "K", "from", "t"), tables, t);
+        results.put(Arrays.asList("select", "V", "from", "u"), tables, t);
+        assertNull(results.get(clause, tables));
+        assertEquals(2 * t.memory(), results.resident());
+    }
+
+    /** Tests that the hash join agrees with the definition of a natural
+     *  join, whichever of its inputs is smaller. */
+    @Test
+    public void testHashJoin() {
+        Table students = Table.readTable("students");
+        Table enrolled = Table.readTable("enrolled");
+        Table join1 = students.findInnerJoin(enrolled);
+        Table join2 = enrolled.findInnerJoin(students);
+        assertEquals(enrolled.size(), join1.size());
+        assertEquals(join1.size(), join2.size());
+        assertEquals("SID", join1.getTitle(0));
+        assertEquals("CCN", join1.getTitle(students.columns()));
+        assertEquals(students.columns() + enrolled.columns() - 1,
+                     join1.columns());
+        for (Row row : join1) {
+            assertTrue(row.get(join1.findColumn("SID")) != null);
+        }
+
+        Table t1 = new Table(new String[] {"A", "B"});
+        Table t2 = new Table(new String[] {"B", "C"});
+        t1.add(new Row(new String[] {"1", "x"}));
+        t1.add(new Row(new String[] {"2", "y"}));
+        t2.add(new Row(new String[] {"x", "3"}));
+        t2.add(new Row(new String[] {"x", "4"}));
+        t2.add(new Row(new String[] {"z", "5"}));
+        Table join3 = t1.findInnerJoin(t2);
+        assertEquals(2, join3.size());
+        assertEquals(3, join3.columns());
+        Table join4 = t2.findInnerJoin(t1);
+        assertEquals("C", join4.getTitle(1));
+        assertTrue(!join4.add(new Row(new String[] {"x", "3", "1"})));
+        assertTrue(!join4.add(new Row(new String[] {"x", "4", "1"})));
+    }
+
+    /** Tests that a select from a large table scanned in parallel
+     *  produces the same distinct rows, in the same order, as one scanned
+     *  serially, with and without an index. */
+    @Test
+    public void testParallelSelect() {
+        Table t = new Table(new String[] { "A", "B", "C" },
+                            new Type[] { Type.INT, Type.STRING, Type.INT },
+                            new ValueDictionary());
+        int rows = 3 * Planner.PARALLEL_ROWS;
+        for (int i = 0; i < rows; i += 1) {
+            t.add(new Row(new String[] { Integer.toString(i % 5000),
+                                         "b" + (i % 7),
+                                         Integer.toString(i % 11) }));
+        }
+        Table[] tables = { t };
+        String[] names = { "t" };
+        List<String> columns = Arrays.asList("B", "C");
+        for (int pass = 0; pass < 2; pass += 1) {
+            List<Condition> conditions =
+                Arrays.asList(new Condition(new Column("A", t), ">",
+                                            "1234"),
+                              new Condition(new Column("B", t), "!=",
+                                            "b3"),
+                              new Condition(new Column("C", t), "<",
+                                            new Column("A", t)));
+            Operator.Output serial =
+                Planner.plan(names, tables, columns, conditions,
+                             Collections.<String>emptyList(),
+                             Collections.<String>emptyList(), false);
+            Operator.Output parallel =
+                Planner.plan(names, tables, columns, conditions,
+                             Collections.<String>emptyList(),
+                             Collections.<String>emptyList(), true);
+            assertTrue(parallel instanceof Operator.ParallelSelect);
+            assertTrue(t.selectPlan(columns, conditions, true)
+                       instanceof Operator.ParallelSelect);
+            Table expected = Table.collect(serial),
+                actual = Table.collect(parallel),
+                selected = t.select(columns, conditions, true);
+            assertEquals(expected.size(), actual.size());
+            assertEquals(expected.size(), selected.size());
+            for (int r = 0; r < expected.size(); r += 1) {
+                assertEquals(expected.getRow(r), actual.getRow(r));
+                assertEquals(expected.getRow(r), selected.getRow(r));
+            }
+            if (pass == 0) {
+                t.createIndex("a", Arrays.asList("A"));
+            }
+        }
+
+        assertFalse(Planner.plan(names, tables, columns,
+                                 Collections.<Condition>emptyList(),
+                                 Collections.<String>emptyList(),
+                                 Arrays.asList("B"), true)
+                    instanceof Operator.ParallelSelect);
+    }
+
+    /** Tests that selects through an index find the same rows as a full
+     *  scan. */
+    @Test
+    public void testIndex() {
+        Table plain = Table.readTable("enrolled");
+        Table indexed = Table.readTable("enrolled");
+        ArrayList<String> key = new ArrayList<String>();
+        key.add("CCN");
+        key.add("SID");
+        indexed.createIndex("byCCN", key);
+        try {
+            indexed.createIndex("byCCN", key);
+            fail("Should have thrown exception");
+        } catch (DBException d) {
+            assertEquals("duplicate index name: byCCN", d.getMessage());
+        }
+
+        ArrayList<String> columnNames = new ArrayList<String>();
+        columnNames.add("SID");
+        columnNames.add("Grade");
+        String[][] queries = {
+            {"CCN", "=", "21001"}, {"CCN", "<", "21105"},
+            {"CCN", ">=", "21105"}, {"CCN", "!=", "21001"},
+            {"SID", "=", "101"}, {"CCN", ">", "99999"},
+        };
+        for (String[] query : queries) {
+            ArrayList<Condition> c1 = new ArrayList<Condition>();
+            c1.add(new Condition(new Column(query[0], plain),
+                                 query[1], query[2]));
+            ArrayList<Condition> c2 = new ArrayList<Condition>();
+            c2.add(new Condition(new Column(query[0], indexed),
+                                 query[1], query[2]));
+            assertEquals(rowSet(plain.select(columnNames, c1)),
+                         rowSet(indexed.select(columnNames, c2)));
+        }
+
+        ArrayList<Condition> both = new ArrayList<Condition>();
+        both.add(new Condition(new Column("CCN", indexed), ">", "21001"));
+        both.add(new Condition(new Column("CCN", indexed), "<=", "21001"));
+        assertEquals(0, indexed.select(columnNames, both).size());
+
+        indexed.add(new Row(new String[] {"999", "21001", "A"}));
+        ArrayList<Condition> eq = new ArrayList<Condition>();
+        eq.add(new Condition(new Column("CCN", indexed), "=", "21001"));
+        eq.add(new Condition(new Column("SID", indexed), "=", "999"));
+        assertEquals(1, indexed.select(columnNames, eq).size());
+    }
 
-        while (actualIterator.hasNext()) {
-            assertEquals((Row) actualIterator.next(),
-                         (Row) expectedIterator.next());
+    /** Return the rows of TABLE as a set. */
+    private static HashSet<Row> rowSet(Table table) {
+        HashSet<Row> result = new HashSet<Row>();
+        for (Row row : table) {
+            result.add(row);
         }
+        return result;
     }
 
     public static void main(String[] args) {
@@ -1,32 +1,32 @@
 package db61b;
 
+import java.io.IOException;
 import java.io.PrintStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.ArrayList;
-import java.util.Scanner;
 
 import static db61b.Utils.*;
 
-/** Represents a stream of db61b tokens read from a given Scanner.
+/** Represents a stream of db61b tokens read from a given Reader.
  *  @author P. N. Hilfinger. */
 class Tokenizer {
 
-    /** Text of regular expressions that represent literals (possibly
-     *  unterminated), identifiers, and comments (possibly
-     *  unterminated). */
-    private static final String
-        LITERAL_TEXT = "'(?:[^,'\n\r]*)'?",
-        IDENTIFIER_TEXT = "[\\p{Alpha}_]\\w*",
-        COMMENT_TEXT = "(?:/\\*.*?\\*/|/\\*.*)";
-    /** Matches potential tokens, including valid or unterminated
-     *  literals, valid or unterminated comments, identifiers,
-     *  relation symbols (=, <, <=, >=, and !=), end-of-line
-     *  sequences, or other single characters.  The pattern matches a
-     *  prefix of any string. */
-    private static final Pattern
-        TOKEN_PATN = mkPatn("(?s)[<>!]?=|%s|%s|%s|\r?\n|\\S",
-                            LITERAL_TEXT, IDENTIFIER_TEXT, COMMENT_TEXT);
+    /** Text of a regular expression that represents identifiers. */
+    private static final String IDENTIFIER_TEXT = "[\\p{Alpha}_]\\w*";
+
+    /* The potential tokens are: literals, a quote followed by any
+     * characters other than commas, quotes, and ends of line, and then a
+     * closing quote, which an unterminated literal lacks; identifiers;
+     * comments, from slash-star to star-slash, which an unterminated
+     * comment lacks; the relation symbols (=, <, >, <=, >=, and !=);
+     * ends of line; and other single non-whitespace characters.  This
+     * is the same as if they were matched, after skipping whitespace,
+     * by the regular expression
+     *     [<>!]?=|'[^,'\n\r]*'?|[\p{Alpha}_]\w*|/\*.*?\*\/|/\*.*|\r?\n|\S
+     * where "." matches any character. */
 
     /** Patterns matching specific kinds of token.  These are intended
      *  to be used with methods such as CommandInterpreter.name. */
@@ -37,45 +37,174 @@ class Tokenizer {
 
     /** A Tokenizer that reads tokens from S, and prompts on PROMPTER,
      *  if it is non-null. */
-    Tokenizer(Scanner s, PrintStream prompter) {
+    Tokenizer(Reader s, PrintStream prompter) {
         _input = s;
-        _buffer = new ArrayList<>();
         _prompter = prompter;
         _continued = false;
         _shouldPrompt = true;
-        _k = 0;
         _mat = Pattern.compile(".").matcher("");
     }
 
-    /** Read the next potential token and add it to _buffer.  Filters
-     *  out comments and ends-of-line. Adds "*EOF*" at the end of input.
-     *  Throws DBException on encountering a lexical error (such as an
-     *  unterminated literal). */
+    /** Read the next potential token and add it to the end of _tokens.
+     *  Filters out comments and ends-of-line. Adds "*EOF*" at the end of
+     *  input.  Throws DBException on encountering a lexical error (such
+     *  as an unterminated literal).  Tokens are recognized by examining
+     *  each character once, in place of a regular-expression search for
+     *  each token. */
     private void readToken() {
         while (true) {
             prompt();
-            String token = _input.findWithinHorizon(TOKEN_PATN, 0);
-            if (token == null) {
+            int c = read();
+            while (c != -1 && c != '\n' && isSpace(c)) {
+                c = read();
+            }
+            Pattern kind = null;
+            String token;
+            if (c == -1) {
                 token = "*EOF*";
-            } else if (token.startsWith("'")) {
-                if (token.length() == 1 || !token.endsWith("'")) {
+            } else if (c == '\n') {
+                _shouldPrompt = true;
+                continue;
+            } else if (c == '=' || (c == '<' || c == '>' || c == '!')
+                       && peekChar() == '=') {
+                token = c == '=' ? "="
+                    : String.valueOf(new char[] { (char) c, (char) read() });
+                kind = RELATION;
+            } else if (c == '\'') {
+                _text.setLength(0);
+                _text.append('\'');
+                for (c = peekChar(); c != -1 && c != ',' && c != '\''
+                         && c != '\n' && c != '\r'; c = peekChar()) {
+                    _text.append((char) read());
+                }
+                if (c != '\'') {
                     throw error("unterminated literal constant");
                 }
-            } else if (token.startsWith("/*")) {
-                if (token.length() < 4 || !token.endsWith("*/")) {
-                    throw error("unterminated comment");
+                token = _text.append((char) read()).toString();
+                kind = LITERAL;
+            } else if (isLetter(c)) {
+                _text.setLength(0);
+                _text.append((char) c);
+                while (isLetter(peekChar()) || isDigit(peekChar())) {
+                    _text.append((char) read());
                 }
+                token = _text.toString();
+                kind = IDENTIFIER;
+            } else if (c == '/' && peekChar() == '*') {
+                read();
+                skipComment();
                 continue;
-            } else if (token.endsWith("\n")) {
-                _shouldPrompt = true;
-                continue;
+            } else if (Character.isHighSurrogate((char) c)
+                       && peekChar() != -1
+                       && Character.isLowSurrogate((char) peekChar())) {
+                token = new String(new char[] { (char) c, (char) read() });
+            } else {
+                token = String.valueOf((char) c);
+                kind = c == '<' || c == '>' ? RELATION : null;
             }
-            _buffer.add(token);
+            add(token, kind);
             _continued = !token.equals(";");
             return;
         }
     }
 
+    /** Read past the rest of a comment, whose opening has been read.
+     *  Throws DBException if it is unterminated, having read the rest of
+     *  the input. */
+    private void skipComment() {
+        int c = read();
+        while (c != -1) {
+            int next = read();
+            if (c == '*' && next == '/') {
+                return;
+            }
+            c = next;
+        }
+        throw error("unterminated comment");
+    }
+
+    /** Return true iff C is a whitespace character, as matched by \s. */
+    private static boolean isSpace(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f'
+            || c == '\r';
+    }
+
+    /** Return true iff C is an ASCII letter or underscore, as matched by
+     *  [\p{Alpha}_]. */
+    private static boolean isLetter(int c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '_';
+    }
+
+    /** Return true iff C is an ASCII digit. */
+    private static boolean isDigit(int c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /** Return the next character of input, or -1 at the end, without
+     *  reading past it. */
+    private int peekChar() {
+        if (_pos == _limit && !fill()) {
+            return -1;
+        }
+        return _chars[_pos];
+    }
+
+    /** Read and return the next character of input, or -1 at the
+     *  end. */
+    private int read() {
+        if (_pos == _limit && !fill()) {
+            return -1;
+        }
+        _pos += 1;
+        return _chars[_pos - 1];
+    }
+
+    /** Refill _chars with the characters available from _input, waiting
+     *  for at least one.  Return false at the end of input.  A failure to
+     *  read (such as a client resetting its connection) is taken as the
+     *  end of input, as Scanner takes it, since retrying could only fail
+     *  again. */
+    private boolean fill() {
+        if (_atEnd) {
+            return false;
+        }
+        try {
+            int n = _input.read(_chars, 0, _chars.length);
+            while (n == 0) {
+                n = _input.read(_chars, 0, _chars.length);
+            }
+            _pos = 0;
+            _limit = Math.max(n, 0);
+            _atEnd = n < 0;
+            return n > 0;
+        } catch (IOException e) {
+            _pos = _limit = 0;
+            _atEnd = true;
+            return false;
+        }
+    }
+
+    /** Add TOKEN, which is of the kind matched by KIND (null if none of
+     *  IDENTIFIER, LITERAL, and RELATION), to the end of _tokens. */
+    private void add(String token, Pattern kind) {
+        if (_count == _tokens.length) {
+            String[] tokens = new String[2 * _count];
+            Pattern[] kinds = new Pattern[2 * _count];
+            for (int i = 0; i < _count; i += 1) {
+                int k = (_first + i) & (_count - 1);
+                tokens[i] = _tokens[k];
+                kinds[i] = _kinds[k];
+            }
+            _tokens = tokens;
+            _kinds = kinds;
+            _first = 0;
+        }
+        int k = (_first + _count) & (_tokens.length - 1);
+        _tokens[k] = token;
+        _kinds[k] = kind;
+        _count += 1;
+    }
+
     /** Print an appropriate prompt, if there is a prompter: either ">"
      *  when expecting the start of a new command, or "..."
      *  otherwise. */
@@ -148,6 +277,9 @@ class Tokenizer {
      *  encountering a lexical error. */
     boolean nextIs(Pattern p) {
         String token = peek();
+        if (p == IDENTIFIER || p == LITERAL || p == RELATION) {
+            return _kinds[_first] == p;
+        }
         return _mat.usePattern(p).reset(token).matches();
     }
 
@@ -160,67 +292,92 @@ class Tokenizer {
 
     /** Return and read past the next token. */
     String next() {
-        if (_k == _buffer.size()) {
-            readToken();
-        }
-        _k += 1;
-        return _buffer.get(_k - 1);
+        String token = peek();
+        _tokens[_first] = null;
+        _first = (_first + 1) & (_tokens.length - 1);
+        _count -= 1;
+        return token;
     }
 
     /** Returns the next token without changing the position of THIS. */
     String peek() {
-        while (_k >= _buffer.size()) {
-            readToken();
-        }
-        return _buffer.get(_k);
+        return peek(0);
     }
 
-    /** Return THIS to its position just after the last flush or flushToSemi
-     *  operation(or its initial position if there have been no flush...
-     *  operations).  */
-    void rewind() {
-        _k = 0;
-    }
-
-    /** Set the rewind point to the current position. */
-    void flush() {
-        _buffer.subList(0, _k).clear();
-        _k = 0;
+    /** Returns the token K tokens after the next one, without changing
+     *  the position of THIS.  Requires K >= 0.  Throws DBException on
+     *  encountering a lexical error, including one found, but not yet
+     *  reported, by peekStatement. */
+    String peek(int k) {
+        while (_count <= k) {
+            if (_error != null) {
+                DBException error = _error;
+                _error = null;
+                throw error;
+            }
+            readToken();
+        }
+        return _tokens[(_first + k) & (_tokens.length - 1)];
     }
 
-    /** Set the rewind point and the current position to just after the
-     *  next semicolon after the previous rewind point(or the end of input,
-     *  whichever comes first). */
-    void flushToSemi() {
-        rewind();
-        while (true) {
-            try {
-                newCommand();
-                String token = next();
-                if (token == null || token.equals(";")) {
-                    break;
+    /** Returns the tokens from the next one up to, but not including, the
+     *  next ";" or end of input, without changing the position of THIS,
+     *  if there are at most LIMIT of them, and otherwise null, having
+     *  looked at no more than LIMIT + 1 tokens ahead.  Returns null, too,
+     *  on encountering a lexical error, which is reported only when the
+     *  tokens before it have been read. */
+    List<String> peekStatement(int limit) {
+        ArrayList<String> tokens = new ArrayList<>(_tokens.length);
+        try {
+            for (String token = peek(0); !token.equals(";")
+                     && !token.equals("*EOF*"); token = peek(tokens.size())) {
+                if (tokens.size() == limit) {
+                    return null;
                 }
-            } catch (DBException e) {
-                /* Ignore DBException */
+                tokens.add(token);
             }
+        } catch (DBException e) {
+            _error = e;
+            return null;
         }
-        flush();
-        newCommand();
+        return tokens;
     }
 
+    /** Initial capacity of _tokens, a power of 2, which doubles when more
+     *  tokens are looked at ahead of the current position. */
+    static final int LOOKAHEAD = 4;
+    /** Size of the buffer of input characters. */
+    private static final int BUFFER_SIZE = 1 << 13;
 
     /** Matcher used for pattern matching. */
     private Matcher _mat;
     /** The character input source. */
-    private Scanner _input;
-    /** All tokens read since the last flush or beginning of input. */
-    private ArrayList<String> _buffer;
+    private Reader _input;
+    /** Input characters read from _input, of which those from _pos up to
+     *  _limit are yet to be examined. */
+    private final char[] _chars = new char[BUFFER_SIZE];
+    /** Bounds of the unexamined characters in _chars. */
+    private int _pos, _limit;
+    /** True iff _input is exhausted. */
+    private boolean _atEnd;
+    /** The text of the token being recognized. */
+    private final StringBuilder _text = new StringBuilder();
+    /** Ring buffer of the tokens read but not yet consumed: _count of
+     *  them, starting at _tokens[_first]. */
+    private String[] _tokens = new String[LOOKAHEAD];
+    /** The kinds of the tokens in _tokens (see add). */
+    private Pattern[] _kinds = new Pattern[LOOKAHEAD];
+    /** Position in _tokens of the next token. */
+    private int _first;
+    /** Number of tokens in _tokens. */
+    private int _count;
+    /** A lexical error found just after the tokens in _tokens, to be
+     *  reported once they have been read, or null if none. */
+    private DBException _error;
     /** Output for prompts.  Null if prompts not used. */
     private PrintStream _prompter;
     /** False iff the next token is expected to start a command. */
     private boolean _continued;
     /** True iff prompt is needed for the next token. */
     private boolean _shouldPrompt;
-    /** Current position in the token stream as an offset within _buffer. */
-    private int _k;
 }
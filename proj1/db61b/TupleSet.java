@@ -0,0 +1,151 @@
+package db61b;
+
+import java.util.Arrays;
+import java.util.List;
+
+/** A set of distinct tuples of dictionary codes, all of the same width.
+ *  Each tuple is identified by a serial number, assigned consecutively
+ *  from 0 in order of insertion, so that callers may keep information
+ *  about tuples (such as the rows that have them) in parallel arrays.
+ *  Tuples may be compared as values of given types, so that tuples that
+ *  differ only in the spelling of equal numbers are the same, and the
+ *  first of them added is the one kept.
+ *  @author Adam Shi
+ */
+class TupleSet {
+
+    /** An empty set of tuples of WIDTH codes each. */
+    TupleSet(int width) {
+        this(width, null, null);
+    }
+
+    /** An empty set of tuples of WIDTH codes each in DICTIONARY, whose
+     *  Kth codes are compared as values of TYPES[K] (see
+     *  ValueDictionary.representative).  TYPES may be longer than
+     *  WIDTH. */
+    TupleSet(int width, ValueDictionary dictionary, List<Type> types) {
+        _width = width;
+        _data = new int[INITIAL_SIZE * Math.max(width, 1)];
+        _slots = new int[2 * INITIAL_SIZE];
+        if (types != null) {
+            for (Type type : types.subList(0, width)) {
+                if (type != Type.STRING) {
+                    _dict = dictionary;
+                    _types = types.subList(0, width).toArray(new Type[0]);
+                    break;
+                }
+            }
+        }
+    }
+
+    /** Return the number of tuples in THIS. */
+    int size() {
+        return _size;
+    }
+
+    /** Return the number of codes in each of my tuples. */
+    int width() {
+        return _width;
+    }
+
+    /** Return the Kth code of the tuple whose serial number is ID. */
+    int get(int id, int k) {
+        return _data[id * _width + k];
+    }
+
+    /** Return the serial number of TUPLE, or -1 if it is not in THIS. */
+    int find(int[] tuple) {
+        return _slots[slot(tuple)] - 1;
+    }
+
+    /** Return the serial number of TUPLE, first adding a copy of it to
+     *  THIS if it is not already present. */
+    int add(int[] tuple) {
+        int s = slot(tuple);
+        if (_slots[s] != 0) {
+            return _slots[s] - 1;
+        }
+        if ((_size + 1) * _width > _data.length) {
+            _data = Arrays.copyOf(_data, 2 * _data.length);
+        }
+        System.arraycopy(tuple, 0, _data, _size * _width, _width);
+        _size += 1;
+        _slots[s] = _size;
+        if (2 * _size > _slots.length) {
+            rehash();
+        }
+        return _size - 1;
+    }
+
+    /** Return a hash of the first _width codes of TUPLE, as they are
+     *  compared. */
+    private int hash(int[] tuple) {
+        int h = 0;
+        for (int k = 0; k < _width; k += 1) {
+            h = 31 * h + key(k, tuple[k]);
+        }
+        return ValueDictionary.mix(h);
+    }
+
+    /** Return the code by which CODE is compared as the Kth code of a
+     *  tuple. */
+    private int key(int k, int code) {
+        return _types == null ? code : _dict.representative(code, _types[k]);
+    }
+
+    /** Return the index in _slots of the slot holding TUPLE, or of the
+     *  empty slot where it belongs if it is absent. */
+    private int slot(int[] tuple) {
+        int mask = _slots.length - 1;
+        int s = hash(tuple) & mask;
+        while (_slots[s] != 0 && !matches(_slots[s] - 1, tuple)) {
+            s = (s + 1) & mask;
+        }
+        return s;
+    }
+
+    /** Return true iff the tuple numbered ID equals TUPLE, as its codes
+     *  are compared. */
+    private boolean matches(int id, int[] tuple) {
+        int base = id * _width;
+        for (int k = 0; k < _width; k += 1) {
+            if (key(k, _data[base + k]) != key(k, tuple[k])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Double the size of _slots, reinserting all my tuples. */
+    private void rehash() {
+        _slots = new int[2 * _slots.length];
+        int mask = _slots.length - 1;
+        int[] tuple = new int[_width];
+        for (int id = 0; id < _size; id += 1) {
+            System.arraycopy(_data, id * _width, tuple, 0, _width);
+            int s = hash(tuple) & mask;
+            while (_slots[s] != 0) {
+                s = (s + 1) & mask;
+            }
+            _slots[s] = id + 1;
+        }
+    }
+
+    /** Initial capacity, in tuples. */
+    private static final int INITIAL_SIZE = 16;
+
+    /** Number of codes per tuple. */
+    private final int _width;
+    /** My tuples, stored consecutively. */
+    private int[] _data;
+    /** Open-addressed hash table of serial numbers, each plus one so that
+     *  0 marks an empty slot.  Always at most half full. */
+    private int[] _slots;
+    /** Number of tuples in THIS. */
+    private int _size;
+    /** The dictionary of my codes, if they are compared as values. */
+    private ValueDictionary _dict;
+    /** The types as which the codes of my tuples are compared, or null if
+     *  they are all compared as strings. */
+    private Type[] _types;
+}
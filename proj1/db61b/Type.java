@@ -0,0 +1,133 @@
+package db61b;
+
+import static db61b.Utils.*;
+
+/** The type of the values in a column of a Table, which determines which
+ *  values it may hold and how they compare.  Strings compare
+ *  lexicographically, as by String.compareTo.  An int column holds only
+ *  numerals of 64-bit integers, and a double column only numerals that
+ *  Double.parseDouble accepts (other than NaN); both compare numerically.
+ *  Values are stored as dictionary codes whatever their type, and each
+ *  value's numeric value is parsed only once (see ValueDictionary.kind),
+ *  so comparing numbers costs no more than comparing strings.
+ *  @author Adam Shi
+ */
+enum Type {
+    STRING, INT, DOUBLE;
+
+    /** Return the Type named NAME: string, int, or double. */
+    static Type named(String name) {
+        for (Type type : values()) {
+            if (type.toString().equals(name)) {
+                return type;
+            }
+        }
+        throw error("unknown column type: %s", name);
+    }
+
+    /** Return the type in which values of types TYPE1 and TYPE2 are
+     *  compared with each other: numerically if both are numeric, and
+     *  exactly if both are ints. */
+    static Type common(Type type1, Type type2) {
+        if (type1 == type2) {
+            return type1;
+        }
+        return type1.isNumeric() && type2.isNumeric() ? DOUBLE : STRING;
+    }
+
+    /** Return the title of a column titled TITLE of this type, as it
+     *  appears in the header of a .db file: TITLE:int or TITLE:double for
+     *  numeric columns, and TITLE alone for strings. */
+    String heading(String title) {
+        return this == STRING ? title : title + ":" + this;
+    }
+
+    /** Return true iff values of this type compare numerically. */
+    boolean isNumeric() {
+        return this != STRING;
+    }
+
+    /** Return true iff a column of this type may hold values whose
+     *  narrowest type (see ValueDictionary.kind) is KIND. */
+    boolean accepts(Type kind) {
+        return this == STRING || kind == INT || kind == this;
+    }
+
+    /** Return the narrowest Type that accepts VALUE.  A numeral padded
+     *  with white space, which Double.parseDouble would accept, is a
+     *  string. */
+    static Type kindOf(String value) {
+        if (value.isEmpty() || !mayBeNumber(value.charAt(0))
+            || value.charAt(value.length() - 1) <= ' ') {
+            return STRING;
+        }
+        try {
+            Long.parseLong(value);
+            return INT;
+        } catch (NumberFormatException e) {
+            /* Not an int */
+        }
+        try {
+            if (!Double.isNaN(Double.parseDouble(value))) {
+                return DOUBLE;
+            }
+        } catch (NumberFormatException e) {
+            /* Not a double */
+        }
+        return STRING;
+    }
+
+    /** Return false if no numeral that Long.parseLong or
+     *  Double.parseDouble accepts may start with C, so that most strings
+     *  are rejected without parsing them. */
+    private static boolean mayBeNumber(char c) {
+        return Character.isDigit(c) || c == '-' || c == '+' || c == '.'
+            || c == 'I' || c == 'N';
+    }
+
+    /** Return a negative, zero, or positive value as VALUE1 is less
+     *  than, equal to, or greater than VALUE2 as values of this type,
+     *  which both must be. */
+    int compare(String value1, String value2) {
+        switch (this) {
+        case INT:
+            return Long.compare(Long.parseLong(value1),
+                                Long.parseLong(value2));
+        case DOUBLE:
+            return compare(Double.parseDouble(value1),
+                           Double.parseDouble(value2));
+        default:
+            return value1.compareTo(value2);
+        }
+    }
+
+    /** Return a negative, zero, or positive value as the value whose code
+     *  in DICT1 is CODE1 is less than, equal to, or greater than that
+     *  whose code in DICT2 is CODE2, as values of this type, which both
+     *  must be. */
+    int compare(ValueDictionary dict1, int code1,
+                ValueDictionary dict2, int code2) {
+        if (code1 == code2 && dict1 == dict2) {
+            return 0;
+        }
+        switch (this) {
+        case INT:
+            return Long.compare(dict1.integer(code1), dict2.integer(code2));
+        case DOUBLE:
+            return compare(dict1.number(code1), dict2.number(code2));
+        default:
+            return dict1.get(code1).compareTo(dict2.get(code2));
+        }
+    }
+
+    /** Return a negative, zero, or positive value as X is less than,
+     *  equal to, or greater than Y (so that 0.0 and -0.0 are equal). */
+    private static int compare(double x, double y) {
+        return x < y ? -1 : x > y ? 1 : 0;
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase();
+    }
+}
@@ -0,0 +1,363 @@
+package db61b;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/** A dictionary that assigns each distinct string value a small integer
+ *  code, numbered consecutively from 0 in order of first appearance, so
+ *  that tables may store codes in place of strings and keep only one copy
+ *  of each value.
+ *
+ *  A dictionary may be shared by threads.  Adding values and computing
+ *  ranks are synchronized, while looking up the value or kind of a code
+ *  is not: each value's kind is found when it is added, and the arrays
+ *  holding them are only ever replaced by longer copies, so a thread that
+ *  has come by a code, by whatever means, finds its entries in any of
+ *  them.
+ *
+ *  Distinct strings may be equal as numbers, such as 1 and 1.0, and
+ *  each value also has a representative for each numeric type: the
+ *  first value added that is equal to it as a value of that type.
+ *  Tables and the operators on them compare the representatives of the
+ *  values in numeric columns where they would otherwise compare codes,
+ *  while storing and producing the values as they were spelt.
+ *  @author Adam Shi
+ */
+class ValueDictionary {
+
+    /** An empty dictionary. */
+    ValueDictionary() {
+        _values = new String[INITIAL_SIZE];
+        _kinds = new Type[INITIAL_SIZE];
+        _integers = new long[INITIAL_SIZE];
+        _numbers = new double[INITIAL_SIZE];
+        _sameInteger = new int[INITIAL_SIZE];
+        _sameNumber = new int[INITIAL_SIZE];
+        _slots = new int[4 * INITIAL_SIZE];
+    }
+
+    /** Return the number of distinct values in THIS. */
+    int size() {
+        return _size;
+    }
+
+    /** Return the value whose code is CODE.  Requires 0 <= CODE < size(). */
+    String get(int code) {
+        return _values[code];
+    }
+
+    /** Return the code of VALUE, or -1 if VALUE has none. */
+    synchronized int find(String value) {
+        return _slots[slot(value)] - 1;
+    }
+
+    /** Return the code of VALUE, first assigning it a new one if it does
+     *  not already have one. */
+    synchronized int encode(String value) {
+        int s = slot(value);
+        if (_slots[s] != 0) {
+            return _slots[s] - 1;
+        }
+        return insert(s, value);
+    }
+
+    /** Return the code of the value whose UTF-8 encoding is in positions
+     *  START .. END - 1 of BUF, first assigning it a new one if it does
+     *  not already have one.  When the value is ASCII and already present,
+     *  no String is created. */
+    int encode(ByteBuffer buf, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i += 1) {
+            byte b = buf.get(i);
+            if (b < 0) {
+                return encode(decode(buf, start, end, UTF_8));
+            }
+            h = 31 * h + b;
+        }
+        return encode(buf, start, end, h);
+    }
+
+    /** Return the code of the value consisting of the ASCII characters in
+     *  positions START .. END - 1 of BUF, whose String hash code is HASH,
+     *  first assigning it a new one if it does not already have one. */
+    synchronized int encode(ByteBuffer buf, int start, int end,
+                            int hash) {
+        int mask = _slots.length - 1;
+        int s = (mix(hash) << 1) & mask;
+        while (_slots[s] != 0
+               && (_slots[s + 1] != hash
+                   || !sameChars(_values[_slots[s] - 1], buf, start, end))) {
+            s = (s + 2) & mask;
+        }
+        if (_slots[s] != 0) {
+            return _slots[s] - 1;
+        }
+        return insert(s, decode(buf, start, end, ISO_8859_1));
+    }
+
+    /** Return true iff VALUE consists of the ASCII characters in positions
+     *  START .. END - 1 of BUF. */
+    private static boolean sameChars(String value, ByteBuffer buf,
+                                     int start, int end) {
+        if (value.length() != end - start) {
+            return false;
+        }
+        for (int i = start; i < end; i += 1) {
+            if (value.charAt(i - start) != buf.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Return the string encoded in CHARSET in positions START .. END - 1
+     *  of BUF. */
+    static String decode(ByteBuffer buf, int start, int end,
+                         Charset charset) {
+        byte[] bytes = new byte[end - start];
+        buf.get(start, bytes);
+        return new String(bytes, charset);
+    }
+
+    /** Add VALUE, which is not present, to THIS in slot S of _slots, and
+     *  return its new code. */
+    private int insert(int s, String value) {
+        if (_size == _values.length) {
+            _kinds = Arrays.copyOf(_kinds, 2 * _size);
+            _integers = Arrays.copyOf(_integers, 2 * _size);
+            _numbers = Arrays.copyOf(_numbers, 2 * _size);
+            _sameInteger = Arrays.copyOf(_sameInteger, 2 * _size);
+            _sameNumber = Arrays.copyOf(_sameNumber, 2 * _size);
+            _values = Arrays.copyOf(_values, 2 * _size);
+        }
+        Type kind = Type.kindOf(value);
+        if (kind == Type.INT) {
+            _integers[_size] = Long.parseLong(value);
+            _numbers[_size] = _integers[_size];
+        } else if (kind == Type.DOUBLE) {
+            _numbers[_size] = Double.parseDouble(value);
+        }
+        _sameInteger[_size] =
+            kind == Type.INT ? _firstIntegers.first(_size) : _size;
+        _sameNumber[_size] =
+            kind != Type.STRING ? _firstNumbers.first(_size) : _size;
+        _kinds[_size] = kind;
+        _values[_size] = value;
+        _size += 1;
+        _slots[s] = _size;
+        _slots[s + 1] = value.hashCode();
+        if (4 * _size > _slots.length) {
+            rehash();
+        }
+        return _size - 1;
+    }
+
+    /** Return an array that maps each of my codes to the code of the same
+     *  value in OTHER, adding my values to OTHER as needed. */
+    synchronized int[] codesIn(ValueDictionary other) {
+        int[] result = new int[_size];
+        for (int code = 0; code < _size; code += 1) {
+            result[code] = other.encode(_values[code]);
+        }
+        return result;
+    }
+
+    /** Return an array giving, for each of my codes, the position of its
+     *  value among my values in increasing order, so that codes may be
+     *  compared in place of the values themselves.  The array is computed
+     *  when first needed and again only after values have been added. */
+    int[] ranks() {
+        return ranks(Type.STRING);
+    }
+
+    /** Return an array as for ranks(), but ordering values as values of
+     *  TYPE.  For a numeric TYPE, values that are not numbers come after
+     *  all numbers, in the order of strings. */
+    synchronized int[] ranks(Type type) {
+        int t = type.ordinal();
+        if (_ranks[t] == null || _ranks[t].length != _size) {
+            Integer[] codes = new Integer[_size];
+            for (int code = 0; code < _size; code += 1) {
+                codes[code] = code;
+            }
+            Arrays.sort(codes, (c1, c2) -> {
+                boolean number1 = type.accepts(kind(c1)),
+                    number2 = type.accepts(kind(c2));
+                if (number1 != number2) {
+                    return number1 ? -1 : 1;
+                }
+                int c = number1 ? type.compare(this, c1, this, c2) : 0;
+                return c != 0 ? c : _values[c1].compareTo(_values[c2]);
+            });
+            int[] ranks = new int[_size];
+            for (int rank = 0; rank < _size; rank += 1) {
+                ranks[codes[rank]] = rank;
+            }
+            _ranks[t] = ranks;
+        }
+        return _ranks[t];
+    }
+
+    /** Return the narrowest Type that accepts the value whose code is
+     *  CODE, which was found when the value was added. */
+    Type kind(int code) {
+        return _kinds[code];
+    }
+
+    /** Return the code of the representative of the value whose code is
+     *  CODE as a value of TYPE: the first of my values to have been added
+     *  that is equal to it as a value of TYPE, if TYPE is numeric and
+     *  accepts it, and otherwise the value itself.  Two values that TYPE
+     *  accepts are equal as values of TYPE iff they have the same
+     *  representative. */
+    int representative(int code, Type type) {
+        switch (type) {
+        case INT:
+            return _sameInteger[code];
+        case DOUBLE:
+            return _sameNumber[code];
+        default:
+            return code;
+        }
+    }
+
+    /** Return the value whose code is CODE as an int, which it must be. */
+    long integer(int code) {
+        return _integers[code];
+    }
+
+    /** Return the value whose code is CODE as a double, which it must be
+     *  (an int will do). */
+    double number(int code) {
+        return _numbers[code];
+    }
+
+    /** Return the index in _slots of the slot that holds VALUE, or of the
+     *  empty slot where it belongs if VALUE is absent. */
+    private int slot(String value) {
+        int hash = value.hashCode();
+        int mask = _slots.length - 1;
+        int s = (mix(hash) << 1) & mask;
+        while (_slots[s] != 0
+               && (_slots[s + 1] != hash
+                   || !_values[_slots[s] - 1].equals(value))) {
+            s = (s + 2) & mask;
+        }
+        return s;
+    }
+
+    /** Double the size of _slots, reinserting all my values. */
+    private void rehash() {
+        int[] old = _slots;
+        _slots = new int[2 * old.length];
+        int mask = _slots.length - 1;
+        for (int k = 0; k < old.length; k += 2) {
+            if (old[k] != 0) {
+                int s = (mix(old[k + 1]) << 1) & mask;
+                while (_slots[s] != 0) {
+                    s = (s + 2) & mask;
+                }
+                _slots[s] = old[k];
+                _slots[s + 1] = old[k + 1];
+            }
+        }
+    }
+
+    /** Return H with its bits scrambled, so that its low-order bits are
+     *  suitable for indexing an open-addressed hash table. */
+    static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /** A set of my numbers, as values of one type, holding the first
+     *  code with each distinct number. */
+    private class Representatives {
+        /** An empty set of ints, compared exactly, if EXACT, and
+         *  otherwise of numbers compared as doubles. */
+        Representatives(boolean exact) {
+            _exact = exact;
+        }
+
+        /** Return the first code in THIS whose number equals that of
+         *  CODE, adding CODE if there is none. */
+        int first(int code) {
+            long key = key(code);
+            int mask = _codes.length - 1;
+            int s = mix(Long.hashCode(key)) & mask;
+            while (_codes[s] != 0) {
+                if (key(_codes[s] - 1) == key) {
+                    return _codes[s] - 1;
+                }
+                s = (s + 1) & mask;
+            }
+            _codes[s] = code + 1;
+            _count += 1;
+            if (2 * _count > _codes.length) {
+                int[] old = _codes;
+                _codes = new int[2 * old.length];
+                mask = _codes.length - 1;
+                for (int c : old) {
+                    if (c != 0) {
+                        s = mix(Long.hashCode(key(c - 1))) & mask;
+                        while (_codes[s] != 0) {
+                            s = (s + 1) & mask;
+                        }
+                        _codes[s] = c;
+                    }
+                }
+            }
+            return code;
+        }
+
+        /** Return a key for the number whose code is CODE that is the
+         *  same for equal numbers (so that 0.0 and -0.0 are the same). */
+        private long key(int code) {
+            return _exact ? _integers[code]
+                : Double.doubleToLongBits(_numbers[code] + 0.0);
+        }
+
+        /** True iff my numbers are ints, compared exactly. */
+        private final boolean _exact;
+        /** Open-addressed hash table of codes, each plus one so that 0
+         *  marks an empty slot.  Always at most half full. */
+        private int[] _codes = new int[2 * INITIAL_SIZE];
+        /** Number of codes in _codes. */
+        private int _count;
+    }
+
+    /** Initial capacity of _values. */
+    private static final int INITIAL_SIZE = 16;
+
+    /** My values, indexed by code.  Like the arrays of kinds and numbers
+     *  below, replaced only after the copy is complete, so that threads
+     *  that read it without synchronization see every value they may
+     *  have a code for. */
+    private volatile String[] _values;
+    /** Open-addressed hash table of codes.  Each slot is a pair of
+     *  elements: a code plus one (so that 0 marks an empty slot) followed
+     *  by the hash code of its value, which spares most comparisons with
+     *  the values themselves.  Always at most half full. */
+    private int[] _slots;
+    /** The results of the last calls to ranks(TYPE), indexed by the
+     *  ordinals of TYPE. */
+    private final int[][] _ranks = new int[Type.values().length][];
+    /** The narrowest types of my values, indexed by code. */
+    private volatile Type[] _kinds;
+    /** The values of my ints, indexed by code. */
+    private volatile long[] _integers;
+    /** The values of my numbers, indexed by code. */
+    private volatile double[] _numbers;
+    /** The codes of the representatives of my values as ints and as
+     *  doubles, indexed by code (see representative). */
+    private volatile int[] _sameInteger, _sameNumber;
+    /** The first of my ints and of my numbers with each value. */
+    private final Representatives _firstIntegers = new Representatives(true),
+        _firstNumbers = new Representatives(false);
+    /** Number of values in THIS. */
+    private volatile int _size;
+}